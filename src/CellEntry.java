@@ -1,5 +1,7 @@
 /**
  * Represents a cell entry in a table with indices like A0, A1, B0, etc.
+ * Columns use one or more letters (A..Z, AA..AZ, BA, ..., XFD, ...) and rows any non-negative number,
+ * so the size of a table is only bounded by the table itself (see Sheet.isIn).
  * Implements the Index2D interface for compatibility.
  */
 public class CellEntry implements Index2D {
@@ -18,39 +20,94 @@ public class CellEntry implements Index2D {
     }
 
     /**
-     * Constructor to create a CellEntry from a string index (e.g., "A0", "B1").
+     * Constructor to create a CellEntry from a string index (e.g., "A0", "B1", "AB12345").
      *
      * @param index The string representation of the cell, e.g., "A0", "B1".
-     *              The format should be one uppercase letter followed by a number.
+     *              The format should be one or more letters (either case) followed by a number.
      */
     public CellEntry(String index) {
-        if (index != null && index.length() >= 2) {
-            // Ensure the input is not null and has at least two characters
-            this.x = index.toUpperCase().charAt(0) - 'A';
-            // Convert the first character (column letter) to a 0-based index
-            try {
-                this.y = Integer.parseInt(index.substring(1));
-                // Extract the numeric part (row index) and parse it
-            } catch (NumberFormatException e) {
-                this.x = -1; // Invalid row number, set as invalid indices
-                this.y = -1;
+        long k = index == null ? -1 : parseKey(index, 0, index.length());
+        this.x = k < 0 ? -1 : keyX(k); // Invalid format, set as invalid indices
+        this.y = k < 0 ? -1 : keyY(k);
+    }
+
+    /**
+     * Parses a cell index (e.g., "AB12") directly into a packed key, without allocating anything.
+     *
+     * @param s    The text holding the index.
+     * @param from The index of its first character.
+     * @param to   The index after its last character.
+     * @return The packed key of the cell (see key), or -1 if the text is not a valid cell index.
+     */
+    public static long parseKey(CharSequence s, int from, int to) {
+        int i = from;
+        long col = 0;
+        while (i < to && isLetter(s.charAt(i))) {
+            // Letters are a bijective base-26 number: A=1, ..., Z=26, AA=27, ...
+            col = col * 26 + ((s.charAt(i) | 0x20) - 'a' + 1); // Either case
+            if (col > Integer.MAX_VALUE) {
+                return -1; // Too many letters
+            }
+            i++;
+        }
+        int digits = i;
+        long row = 0;
+        while (i < to && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+            row = row * 10 + (s.charAt(i) - '0');
+            if (row > Integer.MAX_VALUE) {
+                return -1; // Too many digits
             }
-        } else {
-            this.x = -1; // Invalid format, set as invalid indices
-            this.y = -1;
+            i++;
+        }
+        if (digits == from || i == digits || i != to) {
+            return -1; // Missing letters or digits, or trailing characters
         }
+        return key((int) col - 1, (int) row);
+    }
+
+    /**
+     * Packs the indices of a cell into a single key: the column in the high 32 bits and the row in the low 32 bits.
+     * Keys identify cells in the sheet storage and the dependency graph.
+     * The offsets of a formula template (see Formula) may be negative, and are packed the same way.
+     *
+     * @param x Column index (0-based).
+     * @param y Row index (0-based).
+     * @return The key of the cell.
+     */
+    public static long key(int x, int y) {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @param key A packed cell key.
+     * @return The column index of the key.
+     */
+    public static int keyX(long key) {
+        return (int) (key >>> 32);
+    }
+
+    /**
+     * @param key A packed cell key.
+     * @return The row index of the key.
+     */
+    public static int keyY(long key) {
+        return (int) key;
     }
 
     /**
-     * Checks if the cell indices are valid.
+     * Checks if the cell indices are valid, i.e., the index has a column and a (non-negative) row.
+     * Whether it is within a specific table is checked against that table (see Sheet.isIn).
      *
-     * @return True if the cell is within the valid table range, false otherwise.
+     * @return True if the indices represent a cell, false otherwise.
      */
     @Override
     public boolean isValid() {
-        return x >= 0 && x < 26 && y >= 0 && y < 100;
-        // Check that the column index is between A (0) and Z (25)
-        // and the row index is within 0 to 99 (adjust range as necessary)
+        return x >= 0 && y >= 0;
+    }
+
+    // Checks for an ASCII letter (a column character)
+    private static boolean isLetter(char ch) {
+        return (ch >= 'A' && ch <= 'Z') || (ch >= 'a' && ch <= 'z');
     }
 
     /**
@@ -74,15 +131,17 @@ public class CellEntry implements Index2D {
     }
 
     /**
-     * Converts the CellEntry to a string representation, e.g., "A0", "B1".
+     * Converts the CellEntry to a string representation, e.g., "A0", "B1", "AA7".
      *
      * @return The string representation of the cell.
      */
     @Override
     public String toString() {
-        char col = (char) ('A' + x);
-        // Convert the column index back to its corresponding letter
-        return col + String.valueOf(y);
-        // Combine the column letter with the row index as a string
+        StringBuilder col = new StringBuilder();
+        for (long n = x + 1L; n > 0; n = (n - 1) / 26) {
+            col.append((char) ('A' + (n - 1) % 26)); // Convert the column index back to its letters
+        }
+        return col.reverse().toString() + y;
+        // Combine the column letters with the row index as a string
     }
 }
@@ -29,8 +29,9 @@ public class CellEntryTest {
         assertEquals("Z99", cell.toString());
         assertTrue(cell.isValid());
 
-        CellEntry invalidCell = new CellEntry("Z100"); // Out of valid range
-        assertFalse(invalidCell.isValid());
+        CellEntry largeRow = new CellEntry("Z100"); // Rows are not limited to 0-99
+        assertEquals(100, largeRow.getY());
+        assertTrue(largeRow.isValid());
     }
 
     @Test
@@ -60,10 +61,30 @@ public class CellEntryTest {
         assertTrue(validUpperBound.isValid());
         assertEquals("Z99", validUpperBound.toString());
 
-        CellEntry invalidUpperBound = new CellEntry("Z100"); // Beyond upper bound
+        CellEntry invalidUpperBound = new CellEntry("A2147483648"); // Beyond the int range
         assertFalse(invalidUpperBound.isValid());
     }
 
+    @Test
+    public void testMultiLetterColumns() {
+        CellEntry aa = new CellEntry("AA0"); // The column after Z
+        assertEquals(26, aa.getX());
+        assertEquals("AA0", aa.toString());
+
+        CellEntry ab = new CellEntry("ab12345"); // Either case
+        assertEquals(27, ab.getX());
+        assertEquals(12345, ab.getY());
+        assertEquals("AB12345", ab.toString());
+
+        CellEntry xfd = new CellEntry("XFD1048576");
+        assertEquals(16383, xfd.getX());
+        assertEquals(1048576, xfd.getY());
+        assertEquals("XFD1048576", xfd.toString());
+
+        assertFalse(new CellEntry("A1B").isValid()); // Trailing letters
+        assertFalse(new CellEntry("ABC").isValid()); // No row
+    }
+
     @Test
     public void testIsValid() {
         CellEntry validCell = new CellEntry("B5");
@@ -75,4 +96,14 @@ public class CellEntryTest {
         CellEntry invalidY = new CellEntry("A-1"); // Negative row index
         assertFalse(invalidY.isValid());
     }
+
+    @Test
+    public void testParseKey() {
+        String formula = "=2*AB12+c3";
+        long ab12 = CellEntry.parseKey(formula, 3, 7); // Parses a range of the text, without a substring
+        assertEquals(27, CellEntry.keyX(ab12));
+        assertEquals(12, CellEntry.keyY(ab12));
+        assertEquals(CellEntry.key(2, 3), CellEntry.parseKey(formula, 8, 10));
+        assertEquals(-1, CellEntry.parseKey(formula, 1, 4)); // "2*A"
+    }
 }
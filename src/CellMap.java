@@ -0,0 +1,390 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Represents the populated cells of a sparse spreadsheet: an open-addressing hash map
+ * from a packed (long) cell key to the fields of its cell, with linear probing.
+ *
+ * The cells are stored as a struct of arrays rather than as objects: each field of a cell (its type,
+ * order, numeric value, raw text, compiled formula...) lives in its own array, at the slot of its key.
+ * A number costs no object at all (its text is formatted from its value when shown), formulas filled down
+ * a column share a single compiled tree (see Formula.compile), and the loops of a recalculation read
+ * the types and values from contiguous primitive arrays.
+ *
+ * Optionally, the types and values (the columns a recalculation writes) are kept off the Java heap,
+ * in direct buffers indexed by slot: tens of millions of values then add nothing to the heap
+ * the garbage collector has to trace or copy. The values are split across buffers of 2^PAGE slots,
+ * since a buffer is indexed by an int and 8 bytes per slot would overflow it beyond 2^28 slots.
+ * (ByteBuffer rather than a MemorySegment, which is not final in JDK 17.)
+ *
+ * Slots are stable as long as no cell is added or removed, e.g., during an evaluation.
+ */
+public class CellMap {
+    private static final long FREE = -1; // Marks an unused slot (cell keys are never negative)
+    private static final int PAGE = 27; // Log2 of the slots of each buffer of values off the heap (1GB each)
+    private final boolean offHeap; // Whether the types and values are kept in direct buffers
+    private long[] keys; // The key of each slot, or FREE
+    private byte[] types; // The type of each cell (see Ex2Utils), on the heap
+    private int[] orders; // The order (depth) of each cell
+    private double[] values; // The number of a number cell, the computed value of a formula (NaN if none), on the heap
+    private ByteBuffer offTypes; // The types off the heap (a byte per slot)
+    private ByteBuffer[] offValues; // The values off the heap (8 bytes per slot, in the native order), by page
+    private String[] texts; // The raw text of a text or formula cell (null for a number)
+    private String[] shown; // The value of a number or formula, formatted when first shown (see shown())
+    private Formula[] formulas; // The compiled formula of a formula cell
+    private Formula.Reads[] reads; // What the last evaluation of a formula with branches read (see Formula.Reads)
+    private int size = 0; // Number of populated cells
+
+    /**
+     * Constructs an empty map, keeping all its fields on the heap.
+     */
+    public CellMap() {
+        this(false);
+    }
+
+    /**
+     * Constructs an empty map.
+     *
+     * @param offHeap Whether the types and values of the cells are kept outside the Java heap.
+     */
+    public CellMap(boolean offHeap) {
+        this.offHeap = offHeap;
+        allocate(16);
+    }
+
+    /**
+     * @return Whether the types and values of the cells are kept outside the Java heap.
+     */
+    public boolean isOffHeap() {
+        return offHeap;
+    }
+
+    /**
+     * Returns the slot of the cell with the given key.
+     *
+     * @param key The packed key of the cell.
+     * @return The slot, or -1 if the cell is not populated.
+     */
+    public int find(long key) {
+        for (int i = slot(key); keys[i] != FREE; i = (i + 1) & (keys.length - 1)) {
+            if (keys[i] == key) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Sets the content of the cell with the given key, adding it if needed.
+     *
+     * @param key  The packed key of the cell.
+     * @param cell The parsed content (see SCell), whose type, text, number and formula are copied.
+     * @return The slot of the cell (slots of other cells may have moved).
+     */
+    public int put(long key, SCell cell) {
+        boolean number = cell.getType() == Ex2Utils.NUMBER;
+        return put(key, cell.getType(), number ? cell.getNumber() : Double.NaN,
+                number ? null : cell.getData(), cell.getFormula());
+    }
+
+    /**
+     * Sets the content of the cell with the given key from its fields, adding it if needed
+     * (e.g., as read from a binary file, without parsing it again).
+     *
+     * @param key     The packed key of the cell.
+     * @param type    The type of the content (see Ex2Utils).
+     * @param value   The number of a number cell (NaN otherwise).
+     * @param text    The raw text of a text or formula cell (null for a number).
+     * @param formula The compiled formula of a formula cell, relative to the cell (null otherwise).
+     * @return The slot of the cell (slots of other cells may have moved).
+     */
+    public int put(long key, int type, double value, String text, Formula formula) {
+        int i = find(key);
+        if (i < 0) {
+            if ((size + 1) * 2 > keys.length) { // Keep the load factor at most 1/2
+                resize(keys.length * 2);
+            }
+            i = slot(key);
+            while (keys[i] != FREE) {
+                i = (i + 1) & (keys.length - 1);
+            }
+            keys[i] = key;
+            size++;
+        }
+        setType(i, type);
+        orders[i] = 0;
+        putValue(i, value);
+        texts[i] = text;
+        shown[i] = null;
+        formulas[i] = formula;
+        reads[i] = null;
+        return i;
+    }
+
+    /**
+     * Removes the cell with the given key, if populated.
+     * Following entries of the same probe run are shifted back, so no tombstones are needed.
+     *
+     * @param key The packed key of the cell.
+     */
+    public void remove(long key) {
+        int mask = keys.length - 1;
+        int i = slot(key);
+        while (keys[i] != key) {
+            if (keys[i] == FREE) {
+                return; // Not populated
+            }
+            i = (i + 1) & mask;
+        }
+        size--;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (keys[j] == FREE) {
+                break;
+            }
+            int home = slot(keys[j]);
+            // Move the entry at j into the hole at i if its home slot is not within (i, j]
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                move(j, i);
+                i = j;
+            }
+        }
+        keys[i] = FREE;
+        texts[i] = null;
+        shown[i] = null;
+        formulas[i] = null;
+        reads[i] = null;
+    }
+
+    /**
+     * @return The number of populated cells.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The number of slots (every slot is below it).
+     */
+    public int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * Returns the keys of all the populated cells (in no particular order).
+     *
+     * @return A new array of keys.
+     */
+    public long[] keys() {
+        long[] ans = new long[size];
+        int n = 0;
+        for (long k : keys) {
+            if (k != FREE) {
+                ans[n++] = k;
+            }
+        }
+        return ans;
+    }
+
+    /**
+     * @param i A slot.
+     * @return The key of its cell.
+     */
+    public long key(int i) {
+        return keys[i];
+    }
+
+    /**
+     * @param i A slot.
+     * @return The type of its cell (see Ex2Utils).
+     */
+    public int type(int i) {
+        return offHeap ? offTypes.get(i) : types[i];
+    }
+
+    /**
+     * @param i A slot.
+     * @param t The new type of its cell.
+     */
+    public void setType(int i, int t) {
+        if (offHeap) {
+            offTypes.put(i, (byte) t);
+        } else {
+            types[i] = (byte) t;
+        }
+    }
+
+    /**
+     * @param i A slot.
+     * @return The order (depth) of its cell.
+     */
+    public int order(int i) {
+        return orders[i];
+    }
+
+    /**
+     * @param i A slot.
+     * @param o The new order of its cell.
+     */
+    public void setOrder(int i, int o) {
+        orders[i] = o;
+    }
+
+    /**
+     * @param i A slot.
+     * @return The number of a number cell, or the computed value of a formula (NaN if not computed).
+     */
+    public double value(int i) {
+        return offHeap ? offValues[i >>> PAGE].getDouble(offset(i)) : values[i];
+    }
+
+    /**
+     * @param i A slot.
+     * @param v The computed value of its formula.
+     */
+    public void setValue(int i, double v) {
+        putValue(i, v);
+        shown[i] = null;
+    }
+
+    /**
+     * @param i A slot.
+     * @return The raw data of its cell (for a number, its value formatted as when it was set).
+     */
+    public String text(int i) {
+        return texts[i] != null ? texts[i] : shown(i);
+    }
+
+    /**
+     * Returns the value of a number or formula cell, formatted when first asked for
+     * and kept until the value changes.
+     *
+     * @param i A slot.
+     * @return The formatted value, or null if it is not computed yet.
+     */
+    public String shown(int i) {
+        String ans = shown[i];
+        double v = value(i);
+        if (ans == null && !Double.isNaN(v)) {
+            ans = "" + v;
+            shown[i] = ans;
+        }
+        return ans;
+    }
+
+    /**
+     * @param i A slot.
+     * @return The compiled formula of its cell, relative to the cell (null if it is not a valid formula).
+     */
+    public Formula formula(int i) {
+        return formulas[i];
+    }
+
+    /**
+     * @param i A slot.
+     * @return What the last evaluation of its formula read, or null if it may have read every reference.
+     */
+    public Formula.Reads reads(int i) {
+        return reads[i];
+    }
+
+    /**
+     * @param i A slot.
+     * @param r What the last evaluation of its formula read.
+     */
+    public void setReads(int i, Formula.Reads r) {
+        reads[i] = r;
+    }
+
+    // The home slot of a key (the key bits are mixed, as neighbouring cells have neighbouring keys)
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & (keys.length - 1);
+    }
+
+    // Writes a value, without clearing its formatted text
+    private void putValue(int i, double v) {
+        if (offHeap) {
+            offValues[i >>> PAGE].putDouble(offset(i), v);
+        } else {
+            values[i] = v;
+        }
+    }
+
+    // Returns the position of the value of a slot in its buffer off the heap
+    private static int offset(int i) {
+        return (i & ((1 << PAGE) - 1)) << 3;
+    }
+
+    // Moves the cell at slot j to slot i
+    private void move(int j, int i) {
+        keys[i] = keys[j];
+        setType(i, type(j));
+        orders[i] = orders[j];
+        putValue(i, value(j));
+        texts[i] = texts[j];
+        shown[i] = shown[j];
+        formulas[i] = formulas[j];
+        reads[i] = reads[j];
+    }
+
+    // Allocates empty arrays of the given capacity (a power of 2)
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, FREE);
+        if (offHeap) { // Direct buffers are released when collected, like the arrays they replace
+            offTypes = ByteBuffer.allocateDirect(capacity);
+            offValues = new ByteBuffer[Math.max(capacity >>> PAGE, 1)];
+            int slots = Math.min(capacity, 1 << PAGE); // At most 2^30 bytes, within the int index of a buffer
+            for (int p = 0; p < offValues.length; p++) {
+                offValues[p] = ByteBuffer.allocateDirect(slots * 8).order(ByteOrder.nativeOrder());
+            }
+        } else {
+            types = new byte[capacity];
+            values = new double[capacity];
+        }
+        orders = new int[capacity];
+        texts = new String[capacity];
+        shown = new String[capacity];
+        formulas = new Formula[capacity];
+        reads = new Formula.Reads[capacity];
+    }
+
+    // Rehashes all the entries into arrays of the given capacity (a power of 2)
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        byte[] oldTypes = types;
+        int[] oldOrders = orders;
+        double[] oldValues = values;
+        ByteBuffer oldOffTypes = offTypes;
+        ByteBuffer[] oldOffValues = offValues;
+        String[] oldTexts = texts, oldShown = shown;
+        Formula[] oldFormulas = formulas;
+        Formula.Reads[] oldReads = reads;
+        allocate(capacity);
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] == FREE) {
+                continue;
+            }
+            int i = slot(oldKeys[j]);
+            while (keys[i] != FREE) {
+                i = (i + 1) & (capacity - 1);
+            }
+            keys[i] = oldKeys[j];
+            if (offHeap) {
+                offTypes.put(i, oldOffTypes.get(j));
+                offValues[i >>> PAGE].putDouble(offset(i), oldOffValues[j >>> PAGE].getDouble(offset(j)));
+            } else {
+                types[i] = oldTypes[j];
+                values[i] = oldValues[j];
+            }
+            orders[i] = oldOrders[j];
+            texts[i] = oldTexts[j];
+            shown[i] = oldShown[j];
+            formulas[i] = oldFormulas[j];
+            reads[i] = oldReads[j];
+        }
+    }
+}
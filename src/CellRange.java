@@ -0,0 +1,106 @@
+/**
+ * Represents a rectangular range of cells, e.g., "A1:C100" (columns A to C, rows 1 to 100).
+ * The corners are normalized, so "C100:A1" is the same range.
+ *
+ * A formula refers to a range as a whole: the dependency graph holds a single node per distinct range,
+ * instead of one reference per cell of the range.
+ */
+public class CellRange {
+    private final int x1, y1; // Lowest column and row (inclusive)
+    private final int x2, y2; // Highest column and row (inclusive)
+
+    /**
+     * Constructs a range from two opposite corners.
+     *
+     * @param a The packed key of one corner (see CellEntry.key).
+     * @param b The packed key of the opposite corner.
+     */
+    public CellRange(long a, long b) {
+        x1 = Math.min(CellEntry.keyX(a), CellEntry.keyX(b));
+        y1 = Math.min(CellEntry.keyY(a), CellEntry.keyY(b));
+        x2 = Math.max(CellEntry.keyX(a), CellEntry.keyX(b));
+        y2 = Math.max(CellEntry.keyY(a), CellEntry.keyY(b));
+    }
+
+    // Constructs a range from normalized corners
+    private CellRange(int x1, int y1, int x2, int y2) {
+        this.x1 = x1;
+        this.y1 = y1;
+        this.x2 = x2;
+        this.y2 = y2;
+    }
+
+    /**
+     * Moves this range, e.g., from offsets relative to a cell (see Formula) to the cells they refer to.
+     *
+     * @param dx Columns to move by.
+     * @param dy Rows to move by.
+     * @return The moved range (this range if it does not move).
+     */
+    public CellRange shift(int dx, int dy) {
+        return dx == 0 && dy == 0 ? this : new CellRange(x1 + dx, y1 + dy, x2 + dx, y2 + dy);
+    }
+
+    /**
+     * @return The lowest column index of the range.
+     */
+    public int getX1() {
+        return x1;
+    }
+
+    /**
+     * @return The lowest row index of the range.
+     */
+    public int getY1() {
+        return y1;
+    }
+
+    /**
+     * @return The highest column index of the range.
+     */
+    public int getX2() {
+        return x2;
+    }
+
+    /**
+     * @return The highest row index of the range.
+     */
+    public int getY2() {
+        return y2;
+    }
+
+    /**
+     * @param key The packed key of a cell.
+     * @return True if the cell lies within this range.
+     */
+    public boolean contains(long key) {
+        int x = CellEntry.keyX(key), y = CellEntry.keyY(key);
+        return x >= x1 && x <= x2 && y >= y1 && y <= y2;
+    }
+
+    /**
+     * @return The number of cells in this range.
+     */
+    public long area() {
+        return (long) (x2 - x1 + 1) * (y2 - y1 + 1);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof CellRange)) {
+            return false;
+        }
+        CellRange r = (CellRange) o;
+        return x1 == r.x1 && y1 == r.y1 && x2 == r.x2 && y2 == r.y2;
+    }
+
+    @Override
+    public int hashCode() {
+        return ((x1 * 31 + y1) * 31 + x2) * 31 + y2;
+    }
+
+    @Override
+    public String toString() {
+        return new CellEntry(x1, y1) + ":" + new CellEntry(x2, y2);
+    }
+}
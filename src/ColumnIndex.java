@@ -0,0 +1,250 @@
+import java.util.Arrays;
+
+/**
+ * Represents an aggregate index over the rows of one column: a segment tree holding, for every block of rows,
+ * the sum, count, minimum and maximum of its numbers, and the number of its errors.
+ *
+ * Updating a row and aggregating a range of rows both cost O(log n), so SUM(A1:A100000) no longer visits
+ * 100000 cells. Each node is recomputed from its children (rather than adjusted by a difference, as in
+ * a Fenwick tree), so a sum only depends on the current values and not on the history of the updates.
+ *
+ * The tree is sparse: its leaves are blocks of BLOCK rows, and a node (or block) is only allocated once
+ * a row below it holds a number or an error, so the memory follows the populated rows and not the height
+ * of the column. The nodes and blocks are kept in parallel arrays, which grow by doubling.
+ *
+ * Updates and queries are synchronized, since cells of the same column may be evaluated in parallel.
+ */
+public class ColumnIndex {
+    private static final int BLOCK = 64; // Rows of a leaf, one bit each in the masks of its block
+    private final long span; // Rows below the root (a power of 2, at least BLOCK, up to 2^31)
+    private int rows = 0; // Rows 0 to rows-1 are indexed (see grow)
+    private int[] left = new int[16], right = new int[16]; // Children of each node (0 if none), or block of a leaf
+    private double[] sum = new double[16], min = new double[16], max = new double[16]; // Aggregates below each node
+    private int[] count = new int[16], errors = new int[16]; // Numbers and errors below each node
+    private int nodes = 2; // Allocated nodes: node 0 stands for a missing child (it holds nothing), 1 is the root
+    private double[] values = new double[4 * BLOCK]; // The numbers of the rows of each block
+    private long[] numbers = new long[4], errs = new long[4]; // The rows of each block holding a number, an error
+    private int blocks = 0; // Allocated blocks
+
+    /**
+     * Constructs an index with no numbers and no errors, and no row indexed yet.
+     *
+     * @param height The number of rows of the column (rows 0 to height-1).
+     */
+    public ColumnIndex(int height) {
+        long size = BLOCK; // A long, as the power of 2 above the highest heights does not fit in an int
+        while (size < height) {
+            size <<= 1;
+        }
+        span = size;
+        clearNode(0);
+        clearNode(1);
+        if (span == BLOCK) { // The root is a leaf
+            left[1] = allocBlock();
+        }
+    }
+
+    /**
+     * @return The number of rows indexed (rows 0 to rows()-1).
+     */
+    public int rows() {
+        return rows;
+    }
+
+    /**
+     * Extends the rows indexed: the caller then sets the rows added (see set).
+     *
+     * @param rows The number of rows to index, at most the height of the column.
+     */
+    public synchronized void grow(int rows) {
+        this.rows = Math.max(this.rows, rows);
+    }
+
+    /**
+     * Sets the value of a row.
+     *
+     * @param y The row.
+     * @param v The number of the row, or NaN if it is an error.
+     */
+    public synchronized void set(int y, double v) {
+        int[] path = new int[32];
+        int depth = 0, i = 1;
+        long lo = 0, size = span;
+        while (size > BLOCK) { // Down to the leaf of the row, allocating the missing nodes
+            path[depth++] = i;
+            size >>= 1;
+            if (y < lo + size) {
+                if (left[i] == 0) {
+                    int c = allocNode(size == BLOCK); // Before indexing left, which it may reallocate
+                    left[i] = c;
+                }
+                i = left[i];
+            } else {
+                if (right[i] == 0) {
+                    int c = allocNode(size == BLOCK);
+                    right[i] = c;
+                }
+                i = right[i];
+                lo += size;
+            }
+        }
+        int b = left[i], row = (int) (y - lo);
+        long bit = 1L << row;
+        if (Double.isNaN(v)) {
+            numbers[b] &= ~bit;
+            errs[b] |= bit;
+        } else {
+            numbers[b] |= bit;
+            errs[b] &= ~bit;
+            values[b * BLOCK + row] = v;
+        }
+        updateLeaf(i);
+        while (depth > 0) {
+            updateNode(path[--depth]);
+        }
+    }
+
+    /**
+     * Clears a row (an empty or text cell, which aggregates skip).
+     *
+     * @param y The row.
+     */
+    public synchronized void clear(int y) {
+        int[] path = new int[32];
+        int depth = 0, i = 1;
+        long lo = 0, size = span;
+        while (size > BLOCK) {
+            path[depth++] = i;
+            size >>= 1;
+            if (y < lo + size) {
+                i = left[i];
+            } else {
+                i = right[i];
+                lo += size;
+            }
+            if (i == 0) {
+                return; // Nothing below: the row holds nothing already
+            }
+        }
+        long bit = 1L << (int) (y - lo);
+        numbers[left[i]] &= ~bit;
+        errs[left[i]] &= ~bit;
+        updateLeaf(i);
+        while (depth > 0) {
+            updateNode(path[--depth]);
+        }
+    }
+
+    /**
+     * Adds the aggregates of a range of rows to an accumulator.
+     *
+     * @param y1  The first row.
+     * @param y2  The last row (inclusive), below rows().
+     * @param acc The accumulator.
+     */
+    public synchronized void query(int y1, int y2, Formula.Acc acc) {
+        query(1, 0, span, y1, y2, acc);
+    }
+
+    // Adds the aggregates of the rows y1 to y2 below a node (of the rows lo to lo+size-1) to an accumulator
+    private void query(int i, long lo, long size, int y1, int y2, Formula.Acc acc) {
+        if (y1 <= lo && lo + size - 1 <= y2) { // Entirely within the range
+            take(i, acc);
+        } else if (size == BLOCK) { // Only some rows of the block
+            int b = left[i], from = (int) Math.max(y1 - lo, 0), to = (int) Math.min(y2 - lo, BLOCK - 1);
+            long mask = (to == 63 ? -1L : (1L << (to + 1)) - 1) & -(1L << from);
+            for (long m = numbers[b] & mask; m != 0; m &= m - 1) {
+                double v = values[b * BLOCK + Long.numberOfTrailingZeros(m)];
+                acc.sum += v;
+                acc.count++;
+                acc.min = Math.min(acc.min, v);
+                acc.max = Math.max(acc.max, v);
+            }
+            acc.error |= (errs[b] & mask) != 0;
+        } else {
+            long half = size >> 1;
+            if (left[i] != 0 && y1 < lo + half) {
+                query(left[i], lo, half, y1, y2, acc);
+            }
+            if (right[i] != 0 && y2 >= lo + half) {
+                query(right[i], lo + half, half, y1, y2, acc);
+            }
+        }
+    }
+
+    // Allocates a node holding nothing (with a block of its own if it is a leaf), and returns it
+    private int allocNode(boolean leaf) {
+        if (nodes == left.length) {
+            int n = 2 * nodes;
+            left = Arrays.copyOf(left, n);
+            right = Arrays.copyOf(right, n);
+            sum = Arrays.copyOf(sum, n);
+            min = Arrays.copyOf(min, n);
+            max = Arrays.copyOf(max, n);
+            count = Arrays.copyOf(count, n);
+            errors = Arrays.copyOf(errors, n);
+        }
+        int i = nodes++;
+        clearNode(i);
+        if (leaf) {
+            left[i] = allocBlock();
+        }
+        return i;
+    }
+
+    // Allocates a block with no number and no error, and returns it
+    private int allocBlock() {
+        if (blocks == numbers.length) {
+            int n = 2 * blocks;
+            values = Arrays.copyOf(values, n * BLOCK);
+            numbers = Arrays.copyOf(numbers, n);
+            errs = Arrays.copyOf(errs, n);
+        }
+        return blocks++;
+    }
+
+    // Resets the aggregates and the children of a node
+    private void clearNode(int i) {
+        left[i] = 0;
+        right[i] = 0;
+        sum[i] = 0;
+        min[i] = Double.POSITIVE_INFINITY;
+        max[i] = Double.NEGATIVE_INFINITY;
+        count[i] = 0;
+        errors[i] = 0;
+    }
+
+    // Recomputes a leaf from the rows of its block
+    private void updateLeaf(int i) {
+        int b = left[i];
+        clearNode(i);
+        left[i] = b;
+        for (long m = numbers[b]; m != 0; m &= m - 1) {
+            double v = values[b * BLOCK + Long.numberOfTrailingZeros(m)];
+            sum[i] += v;
+            min[i] = Math.min(min[i], v);
+            max[i] = Math.max(max[i], v);
+        }
+        count[i] = Long.bitCount(numbers[b]);
+        errors[i] = Long.bitCount(errs[b]);
+    }
+
+    // Recomputes an inner node from its children
+    private void updateNode(int i) {
+        int a = left[i], b = right[i];
+        sum[i] = sum[a] + sum[b];
+        count[i] = count[a] + count[b];
+        min[i] = Math.min(min[a], min[b]);
+        max[i] = Math.max(max[a], max[b]);
+        errors[i] = errors[a] + errors[b];
+    }
+
+    // Adds the aggregates of a node to an accumulator
+    private void take(int i, Formula.Acc acc) {
+        acc.sum += sum[i];
+        acc.count += count[i];
+        acc.min = Math.min(acc.min, min[i]);
+        acc.max = Math.max(acc.max, max[i]);
+        acc.error |= errors[i] > 0;
+    }
+}
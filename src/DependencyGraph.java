@@ -0,0 +1,472 @@
+import java.util.*;
+
+/**
+ * Represents the dependency graph of a spreadsheet:
+ * for every cell, the set of formula cells that refer to it (its dependents) and the cells it refers to.
+ *
+ * Cells are identified by packed long keys (see Ex2Sheet), and the graph is updated
+ * whenever a cell is replaced, so a change never requires scanning the whole sheet.
+ *
+ * The graph also maintains a topological order of its cells incrementally (Pearce-Kelly):
+ * each cell has an index such that a cell comes before all the cells referring to it.
+ * Adding a reference only reorders the cells between its two ends, and a reference which would
+ * close a cycle is detected by the same bounded search and kept aside as a "back" edge.
+ *
+ * A range (e.g., A1:A100000 in a SUM) is a single node with a negative key, which its formulas refer to.
+ * Only the formula cells within the range refer to its node explicitly, since only they need to be ordered
+ * before it (and can close a cycle through it). Any other cell within the range finds its node
+ * through a spatial index of the ranges (see RangeIndex), so numbers and text never add edges,
+ * whatever the size of the range, and a change finds its ranges in O(log n + k).
+ */
+public class DependencyGraph {
+    private static final HashSet<Long> EMPTY = new HashSet<>(); // Shared answer for cells nobody refers to
+    private final HashMap<Long, HashSet<Long>> dependents = new HashMap<>(); // cell -> cells that refer to it
+    private final HashMap<Long, HashSet<Long>> precedents = new HashMap<>(); // cell -> cells it refers to
+    private final HashMap<Long, HashSet<Long>> back = new HashMap<>(); // cell -> references closing a cycle at it
+    private final HashMap<Long, Integer> ord = new HashMap<>(); // Topological index of each cell in the graph
+    private int low = 0; // Next index for a cell that refers to nothing (placed first)
+    private int high = 0; // Next index for a new formula cell or range node (placed last)
+    private final TreeSet<Long> formulas = new TreeSet<>(); // The formula cells, by column then row (see node)
+    private final HashMap<CellRange, Long> rangeNodes = new HashMap<>(); // range -> its node key
+    private final HashMap<Long, CellRange> rangeOf = new HashMap<>(); // node key -> its range
+    private final RangeIndex rangeIndex = new RangeIndex(); // The node keys of the ranges, by their rectangles
+    private long nextRange = -2; // Key of the next range node (cell keys are never negative)
+
+    /**
+     * Registers the references of a formula cell.
+     *
+     * @param cell       The key of the formula cell.
+     * @param precedents The keys of the cells it refers to.
+     * @param ranges     The ranges it refers to.
+     */
+    public void add(long cell, long[] precedents, CellRange[] ranges) {
+        boolean wasFormula = this.precedents.containsKey(cell);
+        for (long p : precedents) {
+            if (!ord.containsKey(p)) {
+                ord.put(p, --low); // A new precedent does not refer to anything yet
+            }
+        }
+        long[] nodes = new long[ranges.length];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = node(ranges[i]); // New nodes are placed before a new cell, which refers to them
+        }
+        if (!ord.containsKey(cell) && precedents.length + ranges.length > 0) {
+            ord.put(cell, high++); // Nothing refers to a new cell yet
+        }
+        for (long p : precedents) {
+            link(p, cell);
+        }
+        for (long n : nodes) {
+            link(n, cell);
+        }
+        if (!wasFormula && this.precedents.containsKey(cell)) { // A new formula within existing ranges
+            formulas.add(cell);
+            for (long r : rangesOf(cell)) {
+                link(cell, r);
+            }
+        }
+    }
+
+    /**
+     * Removes the references of a formula cell (e.g., before its data is replaced).
+     * Removing references never invalidates the topological order.
+     *
+     * @param cell       The key of the formula cell.
+     * @param precedents The keys of the cells it referred to.
+     * @param ranges     The ranges it referred to.
+     */
+    public void remove(long cell, long[] precedents, CellRange[] ranges) {
+        for (long p : precedents) {
+            unlink(dependents, p, cell);
+            unlink(this.precedents, cell, p);
+            unlink(back, cell, p);
+            forget(p);
+        }
+        for (CellRange r : ranges) {
+            Long k = rangeNodes.get(r);
+            if (k == null) {
+                continue; // Listed twice
+            }
+            unlink(dependents, k, cell);
+            unlink(this.precedents, cell, k);
+            unlink(back, cell, k);
+            if (!dependents.containsKey(k)) {
+                drop(k); // No formula refers to this range anymore
+            }
+        }
+        if (!this.precedents.containsKey(cell)) { // No longer a formula: leave the ranges it lies within
+            formulas.remove(cell);
+            for (long k : new ArrayList<>(dependents.getOrDefault(cell, EMPTY))) {
+                if (isRange(k)) {
+                    unlink(dependents, cell, k);
+                    unlink(this.precedents, k, cell);
+                    unlink(back, k, cell);
+                }
+            }
+        }
+        forget(cell);
+    }
+
+    /**
+     * Returns the cells that refer directly to the given cell,
+     * and the nodes of the ranges which contain it.
+     *
+     * @param cell The key of the cell (or of a range node).
+     * @return The keys of its dependents (empty if none).
+     */
+    public Set<Long> dependentsOf(long cell) {
+        HashSet<Long> ans = dependents.getOrDefault(cell, EMPTY);
+        if (isRange(cell)) {
+            return ans;
+        }
+        HashSet<Long> copy = null;
+        for (long r : rangesOf(cell)) { // Values and text have no explicit edges to their ranges
+            if (!ans.contains(r)) {
+                if (copy == null) {
+                    copy = new HashSet<>(ans);
+                }
+                copy.add(r);
+            }
+        }
+        return copy == null ? ans : copy;
+    }
+
+    /**
+     * Finds the nodes of the ranges which contain a cell.
+     *
+     * @param cell The key of the cell.
+     * @return The keys of the range nodes (empty if none).
+     */
+    private long[] rangesOf(long cell) {
+        return rangeIndex.find(CellEntry.keyX(cell), CellEntry.keyY(cell));
+    }
+
+    /**
+     * Returns what a node refers to directly: the cells of a formula, or the formula cells within a range.
+     *
+     * @param node The key of the cell or range node.
+     * @return The keys of its precedents (empty if none).
+     */
+    public Set<Long> precedentsOf(long node) {
+        return precedents.getOrDefault(node, EMPTY);
+    }
+
+    /**
+     * @param r A range.
+     * @return The key of its node, or null if no formula refers to it.
+     */
+    public Long rangeNode(CellRange r) {
+        return rangeNodes.get(r);
+    }
+
+    /**
+     * @param node The key of a range node.
+     * @return Its range, or null if there is no such node.
+     */
+    public CellRange range(long node) {
+        return rangeOf.get(node);
+    }
+
+    /**
+     * @param key A key of the graph.
+     * @return True if the key is the node of a range rather than a cell.
+     */
+    public static boolean isRange(long key) {
+        return key < 0;
+    }
+
+    /**
+     * Collects the given cell and all the cells that depend on it, directly or transitively.
+     * Cells already in the target set are assumed to have their cone there as well.
+     *
+     * @param cell The key of the changed cell.
+     * @param into The set to add the cone to.
+     */
+    public void cone(long cell, Set<Long> into) {
+        ArrayDeque<Long> queue = new ArrayDeque<>();
+        if (into.add(cell)) {
+            queue.add(cell);
+        }
+        while (!queue.isEmpty()) { // Breadth-first walk over the dependents
+            for (long d : dependentsOf(queue.poll())) {
+                if (into.add(d)) {
+                    queue.add(d);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the given cell and all the cells that depend on it, in topological order.
+     *
+     * The references closing a cycle within this cone are inserted again first: an edit can only
+     * break a cycle which goes through the edited cell, and such a cycle lies within its cone.
+     *
+     * @param cell The key of the changed cell.
+     * @return The cone of the cell, each cell after the cells it refers to (apart from cycles).
+     */
+    public List<Long> orderedCone(long cell) {
+        LinkedHashSet<Long> cone = new LinkedHashSet<>();
+        cone(cell, cone);
+        for (long v : cone) {
+            HashSet<Long> sources = back.remove(v);
+            if (sources != null) {
+                for (long u : sources) {
+                    insert(u, v); // Either fits the order now, or is kept aside again
+                }
+            }
+        }
+        ArrayList<Long> ans = new ArrayList<>(cone);
+        ans.sort(Comparator.comparingInt(k -> ord.getOrDefault(k, Integer.MIN_VALUE)));
+        return ans;
+    }
+
+    /**
+     * Sorts cells and range nodes in topological order, e.g., all the cells of a sheet which was just loaded.
+     *
+     * @param keys The keys of the cells and range nodes (cells outside the graph come first).
+     * @return The keys, each one after the ones it refers to (apart from cycles).
+     */
+    public long[] ordered(List<Long> keys) {
+        long[] sorted = new long[keys.size()]; // The index of each key in its low half, below its order
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = ((long) ord.getOrDefault(keys.get(i), Integer.MIN_VALUE) << 32) | i;
+        }
+        Arrays.sort(sorted);
+        long[] ans = new long[sorted.length];
+        for (int i = 0; i < ans.length; i++) {
+            ans[i] = keys.get((int) sorted[i]);
+        }
+        return ans;
+    }
+
+    /**
+     * Checks whether a reference to this cell closes a cycle, i.e., the cell is part of a cycle.
+     *
+     * @param cell The key of the cell.
+     * @return True if some reference to the cell could not be placed in the topological order.
+     */
+    public boolean closesCycle(long cell) {
+        return back.containsKey(cell);
+    }
+
+    /**
+     * Places the reference u -> v (v refers to u) in the topological order (Pearce-Kelly).
+     * Only the cells with an index between ord[v] and ord[u] are searched and reordered.
+     *
+     * @param u The referred cell.
+     * @param v The referring cell.
+     */
+    private void insert(long u, long v) {
+        int lb = ord.get(v), ub = ord.get(u);
+        if (ub < lb) {
+            return; // Already in order
+        }
+        ArrayList<Long> forward = new ArrayList<>(); // Cells reachable from v with an index up to ub
+        if (!search(v, ub, true, forward, u)) {
+            back.computeIfAbsent(v, k -> new HashSet<>()).add(u); // v reaches u: the reference closes a cycle
+            return;
+        }
+        ArrayList<Long> backward = new ArrayList<>(); // Cells reaching u with an index from lb
+        search(u, lb, false, backward, v);
+
+        // Reuse the indices of both sets: first the cells reaching u, then the cells reachable from v
+        Comparator<Long> byOrd = Comparator.comparingInt(ord::get);
+        forward.sort(byOrd);
+        backward.sort(byOrd);
+        ArrayList<Long> cells = new ArrayList<>(backward);
+        cells.addAll(forward);
+        int[] pool = new int[cells.size()];
+        for (int i = 0; i < pool.length; i++) {
+            pool[i] = ord.get(cells.get(i));
+        }
+        Arrays.sort(pool);
+        for (int i = 0; i < pool.length; i++) {
+            ord.put(cells.get(i), pool[i]);
+        }
+    }
+
+    /**
+     * A bounded depth-first search over the ordered references (not the back edges).
+     *
+     * @param from    The cell to start from.
+     * @param bound   Forward: visit cells with an index up to bound. Backward: from bound.
+     * @param forward True to follow dependents, false to follow precedents.
+     * @param visited Collects the visited cells.
+     * @param target  A cell whose discovery ends the search.
+     * @return False if the target was reached.
+     */
+    private boolean search(long from, int bound, boolean forward, ArrayList<Long> visited, long target) {
+        HashSet<Long> seen = new HashSet<>();
+        ArrayDeque<Long> stack = new ArrayDeque<>();
+        stack.push(from);
+        seen.add(from);
+        while (!stack.isEmpty()) {
+            long w = stack.pop();
+            if (w == target) {
+                return false;
+            }
+            visited.add(w);
+            for (long n : (forward ? dependents : precedents).getOrDefault(w, EMPTY)) {
+                int o = ord.get(n);
+                boolean inRange = forward ? o <= bound : o >= bound;
+                boolean ordered = forward ? !isBack(w, n) : !isBack(n, w);
+                if (inRange && ordered && seen.add(n)) {
+                    stack.push(n);
+                }
+            }
+        }
+        return true;
+    }
+
+    // Adds the reference u -> v (v refers to u), and places it in the topological order
+    private void link(long u, long v) {
+        dependents.computeIfAbsent(u, k -> new HashSet<>()).add(v);
+        precedents.computeIfAbsent(v, k -> new HashSet<>()).add(u);
+        insert(u, v);
+    }
+
+    // Returns the node of a range, creating it (and its references to the formulas within it) if new
+    private long node(CellRange r) {
+        Long k = rangeNodes.get(r);
+        if (k != null) {
+            return k;
+        }
+        long key = nextRange--;
+        rangeNodes.put(r, key);
+        rangeOf.put(key, r);
+        rangeIndex.add(r, key);
+        ord.put(key, high++); // After all the cells, so the references from its formulas are in order
+        Long c = formulas.ceiling(CellEntry.key(r.getX1(), r.getY1())); // Its formulas, column by column
+        while (c != null && CellEntry.keyX(c) <= r.getX2()) {
+            int x = CellEntry.keyX(c), y = CellEntry.keyY(c);
+            if (y < r.getY1()) { // Above the range: jump to its first row
+                c = formulas.ceiling(CellEntry.key(x, r.getY1()));
+            } else if (y > r.getY2()) { // Below the range: jump to the next column
+                c = formulas.ceiling(CellEntry.key(x + 1, r.getY1()));
+            } else {
+                link(c, key);
+                c = formulas.higher(c);
+            }
+        }
+        return key;
+    }
+
+    // Removes the node of a range which no formula refers to anymore
+    private void drop(long key) {
+        CellRange r = rangeOf.remove(key);
+        rangeNodes.remove(r);
+        rangeIndex.remove(r, key);
+        HashSet<Long> members = precedents.remove(key);
+        if (members != null) {
+            for (long m : members) {
+                unlink(dependents, m, key);
+            }
+        }
+        back.remove(key);
+        ord.remove(key);
+    }
+
+    // Checks whether the reference u -> v is kept aside as closing a cycle
+    private boolean isBack(long u, long v) {
+        HashSet<Long> sources = back.get(v);
+        return sources != null && sources.contains(u);
+    }
+
+    // Removes b from the set of a, dropping empty sets
+    private static void unlink(HashMap<Long, HashSet<Long>> map, long a, long b) {
+        HashSet<Long> set = map.get(a);
+        if (set != null) {
+            set.remove(b);
+            if (set.isEmpty()) {
+                map.remove(a); // Keep the graph proportional to the formulas
+            }
+        }
+    }
+
+    // Drops the index of a cell which is no longer part of the graph
+    private void forget(long cell) {
+        if (!dependents.containsKey(cell) && !precedents.containsKey(cell)) {
+            ord.remove(cell);
+        }
+    }
+
+    /**
+     * Finds the strongly connected components which form circular references among the given cells
+     * (Tarjan's algorithm, iterative so long chains do not overflow the call stack).
+     * Runs in O(cells + edges).
+     *
+     * Range nodes are followed (a formula within a range it refers to is a cycle), but not reported.
+     *
+     * @param cells The keys of the cells to consider; edges to other cells are ignored.
+     * @return The components with more than one node, or a single cell referring to itself.
+     */
+    public List<List<Long>> cycles(Collection<Long> cells) {
+        HashSet<Long> in = new HashSet<>(cells);
+        in.addAll(rangeOf.keySet());
+        HashMap<Long, Integer> index = new HashMap<>(); // Discovery index of each visited cell
+        HashMap<Long, Integer> low = new HashMap<>(); // Lowest index reachable from each cell
+        ArrayDeque<Long> stack = new ArrayDeque<>(); // Cells of the components being built
+        HashSet<Long> onStack = new HashSet<>();
+        List<List<Long>> ans = new ArrayList<>();
+
+        for (long root : cells) {
+            if (index.containsKey(root)) {
+                continue;
+            }
+            ArrayDeque<Long> path = new ArrayDeque<>(); // The DFS path, instead of recursion
+            ArrayDeque<Iterator<Long>> next = new ArrayDeque<>(); // Remaining dependents per path cell
+            index.put(root, index.size());
+            low.put(root, index.get(root));
+            stack.push(root);
+            onStack.add(root);
+            path.push(root);
+            next.push(dependentsOf(root).iterator());
+
+            while (!path.isEmpty()) {
+                long v = path.peek();
+                Iterator<Long> it = next.peek();
+                boolean descended = false;
+                while (it.hasNext() && !descended) {
+                    long w = it.next();
+                    if (!in.contains(w)) {
+                        continue;
+                    }
+                    if (!index.containsKey(w)) { // Visit w
+                        index.put(w, index.size());
+                        low.put(w, index.get(w));
+                        stack.push(w);
+                        onStack.add(w);
+                        path.push(w);
+                        next.push(dependentsOf(w).iterator());
+                        descended = true;
+                    } else if (onStack.contains(w)) {
+                        low.put(v, Math.min(low.get(v), index.get(w)));
+                    }
+                }
+                if (descended) {
+                    continue;
+                }
+                path.pop(); // All the dependents of v are done
+                next.pop();
+                if (!path.isEmpty()) {
+                    low.put(path.peek(), Math.min(low.get(path.peek()), low.get(v)));
+                }
+                if (low.get(v).equals(index.get(v))) { // v is the root of a component
+                    List<Long> component = new ArrayList<>();
+                    long w;
+                    do {
+                        w = stack.pop();
+                        onStack.remove(w);
+                        component.add(w);
+                    } while (w != v);
+                    if (component.size() > 1 || dependentsOf(v).contains(v)) {
+                        component.removeIf(DependencyGraph::isRange); // Only cells are reported
+                        ans.add(component);
+                    }
+                }
+            }
+        }
+        return ans;
+    }
+}
@@ -59,6 +59,7 @@ public class Ex2GUI {
 	public static void load(String fileName){
 		try {
 			table.load(fileName);
+			table.eval(); // The loaded formulas are computed before they are drawn
 		}
 		catch (IOException e) {
 			e.printStackTrace();
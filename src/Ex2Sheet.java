@@ -1,25 +1,76 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Represents a spreadsheet implementation with cells that can contain text, numbers, or formulas.
  */
 public class Ex2Sheet implements Sheet {
-    private Cell[][] table; // 2D array to store the cells of the spreadsheet
+    private final int width, height; // Dimensions of the spreadsheet
+    private CellMap table; // The populated cells only (sparse storage, struct of arrays)
+    private final View[] views = new View[64]; // The views handed out last (see get), by the hash of their key
+    private DependencyGraph graph = new DependencyGraph(); // Which formulas refer to each cell
+    private final LinkedHashSet<Long> dirty = new LinkedHashSet<>(); // Cells to be recomputed by eval()
+    public static final int LEVELS = 0, DATAFLOW = 1; // Parallel evaluation modes (see setParallelism)
+    public static final int HEAP = 0, OFF_HEAP = 1; // Storage modes of the types and values of the cells
+    private ForkJoinPool pool = null; // Evaluates the dirty cells in parallel (null: serial evaluation)
+    private int mode = LEVELS; // How the parallel evaluation is scheduled
+    private static final int BATCH = 64; // Cells evaluated by a single parallel task
+    private static final int RUN = 16; // Fewest cells of a column evaluated together (see evalColumns)
+    private static final int BLOCK = 1024; // Most cells of a column evaluated together
+    private static final int CHUNK = 1 << 20; // Fewest bytes of a file parsed by a single task (see load)
+    private static final String HEADER = "I2CS ArielU: SpreadSheet (Ex2) assignment"; // First line of a saved file
+    private static final int MAGIC = 0x45583242, VERSION = 1; // "EX2B", the first bytes of a binary file
+    private static final int HEAD = 48; // Bytes of the header of a binary file (see saveBinary)
+    private static final int VALUES = 1; // Flag of a binary file which holds the computed values
+    private static final long[] NO_PRECEDENTS = new long[0];
+    private static final CellRange[] NO_RANGES = new CellRange[0];
+    private final HashMap<Long, Integer> rangeOrders = new HashMap<>(); // Order of each range node of the graph
+    private final HashMap<Integer, ColumnIndex> columns = new HashMap<>(); // Aggregates of the columns ranges read
+    private Journal journal = null; // Where every change is appended (see openJournal), null if none
 
     /**
      * Constructor to initialize a spreadsheet with specified dimensions.
      *
+     * Cells are stored sparsely: empty coordinates allocate nothing,
+     * so the dimensions can be far larger than the number of populated cells.
+     * The populated cells are not objects either, but slots in parallel arrays (see CellMap).
+     *
      * @param x Number of rows.
      * @param y Number of columns.
      */
     public Ex2Sheet(int x, int y) {
-        table = new SCell[x][y]; // Initialize a 2D array of SCell
-        for (int i = 0; i < x; i++) { // Iterate through rows
-            for (int j = 0; j < y; j++) { // Iterate through columns
-                table[i][j] = new SCell(Ex2Utils.EMPTY_CELL); // Initialize all cells as empty
-            }
-        }
-        eval(); // Evaluate all cells initially
+        this(x, y, HEAP);
+    }
+
+    /**
+     * Constructor to initialize a spreadsheet with specified dimensions and storage mode.
+     *
+     * In OFF_HEAP mode, the type and the number (or computed value) of every cell are kept outside
+     * the Java heap (see CellMap), so the values of very large sheets do not lengthen garbage collections.
+     * Both modes behave the same otherwise.
+     *
+     * @param x       Number of rows.
+     * @param y       Number of columns.
+     * @param storage HEAP or OFF_HEAP.
+     */
+    public Ex2Sheet(int x, int y, int storage) {
+        width = x;
+        height = y;
+        table = new CellMap(storage == OFF_HEAP);
     }
 
     /**
@@ -41,12 +92,15 @@ public class Ex2Sheet implements Sheet {
     @Override
     public String value(int x, int y) {
         String ans = Ex2Utils.EMPTY_CELL; // Default value for empty cells
-        SCell c = (SCell) get(x, y); // Get the cell at (x, y)
+        int i = table.find(CellEntry.key(x, y)); // The slot of the cell at (x, y)
+        if (i < 0) {
+            return ans;
+        }
 
         // Determine the type of the cell and return its appropriate value
-        ans = switch (c.getType()) {
-            case Ex2Utils.NUMBER, Ex2Utils.TEXT -> c.toString(); // Number or text is returned as-is
-            case Ex2Utils.FORM -> c.getComputed(); // Return computed value for formulas
+        ans = switch (table.type(i)) {
+            case Ex2Utils.NUMBER, Ex2Utils.TEXT -> table.text(i); // Number or text is returned as-is
+            case Ex2Utils.FORM -> Objects.requireNonNullElse(table.shown(i), ans); // Empty until computed by eval()
             case Ex2Utils.ERR_FORM_FORMAT -> "ERR_FORM"; // Error for invalid formula format
             case Ex2Utils.ERR_CYCLE_FORM -> "ERR_CYCLE"; // Error for cyclic dependencies
             default -> ans; // Default empty cell value
@@ -54,9 +108,195 @@ public class Ex2Sheet implements Sheet {
         return ans;
     }
 
+    /**
+     * Evaluates the cell at the specified coordinates by walking its compiled formula.
+     *
+     * The cells it refers to are expected to be evaluated already (see depth()).
+     *
+     * @param x Row index.
+     * @param y Column index.
+     * @return The value to be presented in the cell.
+     */
     @Override
     public String eval(int x, int y) {
-        return "";
+        int i = table.find(CellEntry.key(x, y));
+        if (i < 0 || table.type(i) != Ex2Utils.FORM) {
+            return value(x, y); // Only formulas need to be computed
+        }
+        double d = compute(i, null);
+        return Double.isNaN(d) ? Ex2Utils.ERR_FORM : "" + d;
+    }
+
+    // Computes the formula cell at a slot, recording what it reads (if reads is not null)
+    private double compute(int i, Formula.Reads reads) {
+        long k = table.key(i);
+        return checked(i, table.formula(i).eval(this, CellEntry.keyX(k), CellEntry.keyY(k), reads)); // Shared
+    }
+
+    // Marks the formula cell at a slot as an error if its result is not a number, returns the result
+    private double checked(int i, double d) {
+        if (Double.isNaN(d)) { // A referenced cell does not hold a number
+            table.setType(i, Ex2Utils.ERR_FORM_FORMAT);
+        }
+        return d;
+    }
+
+    /**
+     * Returns the numeric value of the cell at the specified coordinates, as used by formulas.
+     *
+     * @param x Row index.
+     * @param y Column index.
+     * @return The number held (or computed) by the cell, or NaN if it is out of bounds or not a number.
+     */
+    double numberAt(int x, int y) {
+        if (!isIn(x, y)) {
+            return Double.NaN;
+        }
+        return number(table.find(CellEntry.key(x, y)));
+    }
+
+    /**
+     * Returns the numeric values of consecutive cells of a column, as used by formulas (see numberAt).
+     * Each cell is a lookup in the hash table: the cells of a column are not contiguous in memory.
+     *
+     * @param x Column index.
+     * @param y Row index of the first cell.
+     * @param n The number of cells.
+     * @return The numbers, NaN for the cells out of bounds or which are not numbers.
+     */
+    double[] numbersAt(int x, int y, int n) {
+        double[] ans = new double[n];
+        for (int i = 0; i < n; i++) {
+            ans[i] = numberAt(x, y + i);
+        }
+        return ans;
+    }
+
+    /**
+     * Returns the numeric value of a cell.
+     *
+     * @param i The slot of the cell, or -1 for an empty cell.
+     * @return The number held (or computed) by the cell, or NaN if it is not a number.
+     */
+    private double number(int i) {
+        if (i < 0) {
+            return Double.NaN; // Empty cells have no numeric value
+        }
+        return switch (table.type(i)) {
+            case Ex2Utils.NUMBER -> table.value(i); // Parsed once, when the data was set
+            case Ex2Utils.FORM -> table.value(i); // NaN if not computed yet
+            default -> Double.NaN; // Text and error cells have no numeric value
+        };
+    }
+
+    /**
+     * Adds the numbers of a range to an aggregate (see Formula.Agg),
+     * in O(log n) per column from the index of each column (see indexColumns).
+     *
+     * @param r   The range, within this sheet.
+     * @param acc The aggregate.
+     */
+    void accumulate(CellRange r, Formula.Acc acc) {
+        accumulate(r.getX1(), r.getY1(), r.getX2(), r.getY2(), acc);
+    }
+
+    /**
+     * Adds the numbers of the range between two corners to an aggregate (see accumulate(CellRange, Acc)).
+     *
+     * @param x1  The lowest column.
+     * @param y1  The lowest row.
+     * @param x2  The highest column.
+     * @param y2  The highest row.
+     * @param acc The aggregate.
+     */
+    void accumulate(int x1, int y1, int x2, int y2, Formula.Acc acc) {
+        for (int x = x1; x <= x2; x++) {
+            ColumnIndex col = columns.get(x);
+            if (col != null && y2 < col.rows()) {
+                col.query(y1, y2, acc);
+            } else { // Not indexed (the range of no formula cell of this sheet): visit the cells
+                for (int y = y1; y <= y2; y++) {
+                    accumulate(x, y, acc);
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes sure the columns of a range are indexed down to its last row.
+     * An index is created for a column the first time a range reads it, and then grown to the last row
+     * of each new range: only the rows added are looked up in the table (and only their populated cells
+     * are stored), so a column is filled at most once whatever the number of ranges that read it.
+     * When the rows added outnumber the populated cells (a tall range over a sparse sheet),
+     * the cells are scanned instead. The index is then kept up to date by index().
+     *
+     * @param r The range, within this sheet.
+     */
+    private void indexColumns(CellRange r) {
+        for (int x = r.getX1(); x <= r.getX2(); x++) {
+            ColumnIndex col = columns.get(x);
+            if (col == null) {
+                col = new ColumnIndex(height);
+                columns.put(x, col);
+            }
+            int from = col.rows();
+            if (from > r.getY2()) {
+                continue; // Indexed already
+            }
+            col.grow(r.getY2() + 1);
+            if ((long) r.getY2() - from >= table.size()) {
+                for (long k : table.keys()) {
+                    if (CellEntry.keyX(k) == x && CellEntry.keyY(k) >= from && CellEntry.keyY(k) <= r.getY2()) {
+                        index(k);
+                    }
+                }
+            } else {
+                for (int y = from; y <= r.getY2(); y++) {
+                    if (table.find(CellEntry.key(x, y)) >= 0) {
+                        index(CellEntry.key(x, y));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Updates the index of the column of a cell (if any) with the current value of the cell.
+     *
+     * @param k The key of the cell.
+     */
+    private void index(long k) {
+        ColumnIndex col = columns.get(CellEntry.keyX(k));
+        int y = CellEntry.keyY(k);
+        if (col == null || y >= col.rows()) {
+            return; // No range reads this cell
+        }
+        int i = table.find(k);
+        if (i < 0 || table.type(i) == Ex2Utils.TEXT) {
+            col.clear(y); // Text and empty cells are skipped by the aggregates
+        } else {
+            col.set(y, number(i)); // NaN for an error
+        }
+    }
+
+    /**
+     * Adds the number of a cell to an aggregate: text and empty cells are skipped, errors are recorded.
+     *
+     * @param x   Column index, within this sheet.
+     * @param y   Row index, within this sheet.
+     * @param acc The aggregate.
+     */
+    void accumulate(int x, int y, Formula.Acc acc) {
+        int i = table.find(CellEntry.key(x, y));
+        if (i < 0 || table.type(i) == Ex2Utils.TEXT) {
+            return;
+        }
+        double d = number(i);
+        if (Double.isNaN(d)) {
+            acc.error = true;
+        } else {
+            acc.add(d);
+        }
     }
 
     /**
@@ -64,11 +304,81 @@ public class Ex2Sheet implements Sheet {
      *
      * @param x Row index.
      * @param y Column index.
-     * @return The cell object.
+     * @return A view of the cell (the shared SCell.EMPTY if it holds no data), or null if out of bounds.
      */
     @Override
     public Cell get(int x, int y) {
-        return table[x][y];
+        if (!isIn(x, y)) {
+            return null;
+        }
+        long k = CellEntry.key(x, y);
+        if (table.find(k) < 0) {
+            return SCell.EMPTY;
+        }
+        int h = (int) (k * 0x9E3779B97F4A7C15L >>> 58); // One of the 64 views
+        View v = views[h];
+        if (v == null || v.key != k) {
+            v = new View(k);
+            views[h] = v; // The same cell asked for again gets the same view
+        }
+        return v;
+    }
+
+    /**
+     * A view of a populated cell of this sheet (see get): it holds the key of the cell only,
+     * and reads and writes the fields of the cell in the table. Setting its data sets the cell of the sheet.
+     * Once the cell is cleared, the view reads as an empty cell.
+     */
+    private final class View implements Cell {
+        private final long key;
+
+        View(long key) {
+            this.key = key;
+        }
+
+        @Override
+        public String getData() {
+            int i = table.find(key);
+            return i < 0 ? Ex2Utils.EMPTY_CELL : table.text(i);
+        }
+
+        @Override
+        public void setData(String s) {
+            set(CellEntry.keyX(key), CellEntry.keyY(key), s);
+        }
+
+        @Override
+        public int getType() {
+            int i = table.find(key);
+            return i < 0 ? Ex2Utils.TEXT : table.type(i);
+        }
+
+        @Override
+        public void setType(int t) {
+            int i = table.find(key);
+            if (i >= 0) {
+                table.setType(i, t);
+            }
+        }
+
+        @Override
+        public int getOrder() {
+            int i = table.find(key);
+            return i < 0 ? 0 : table.order(i);
+        }
+
+        @Override
+        public void setOrder(int t) {
+            int i = table.find(key);
+            if (i >= 0) {
+                table.setOrder(i, t);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return getData();
+        }
     }
 
     /**
@@ -80,9 +390,9 @@ public class Ex2Sheet implements Sheet {
     @Override
     public Cell get(String cords) {
         Cell ans = null;
-        Index2D c = new CellEntry(cords); // Parse the coordinates into indices
-        if (c.isValid() && isIn(c.getX(), c.getY())) { // Validate the indices
-            ans = get(c.getX(), c.getY());
+        long k = cords == null ? -1 : CellEntry.parseKey(cords, 0, cords.length()); // Parse without allocating
+        if (k >= 0 && isIn(CellEntry.keyX(k), CellEntry.keyY(k))) { // Validate the indices
+            ans = get(CellEntry.keyX(k), CellEntry.keyY(k));
         }
         return ans;
     }
@@ -94,7 +404,7 @@ public class Ex2Sheet implements Sheet {
      */
     @Override
     public int width() {
-        return table.length;
+        return width;
     }
 
     /**
@@ -104,55 +414,502 @@ public class Ex2Sheet implements Sheet {
      */
     @Override
     public int height() {
-        return table[0].length;
+        return height;
     }
 
     /**
      * Sets the content of the cell at the specified coordinates.
      *
+     * The topological order of the dependency graph and the order (depth) of the affected cells are
+     * repaired right away. The cell and all the cells that depend on it are marked dirty,
+     * to be recomputed by eval(), except the cells which did not read it: a formula with an IF only
+     * depends on the branch it took (see Formula.Reads).
+     *
+     * If a journal is open (see openJournal), the change is appended to it first.
+     *
      * @param x Row index.
      * @param y Column index.
      * @param s Content to set in the cell.
+     * @throws IndexOutOfBoundsException If the cell is not within this sheet.
      */
     @Override
     public void set(int x, int y, String s) {
-        Cell c = new SCell(s); // Create a new cell with the given content
-        table[x][y] = c; // Replace the cell in the table
+        if (!isIn(x, y)) { // The sparse table would store it, but no other method expects it
+            throw new IndexOutOfBoundsException("Cell " + x + "," + y + " is outside the sheet");
+        }
+        if (journal != null) {
+            try {
+                journal.append(x, y, s);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // Not applied, as it could not be persisted
+            }
+        }
+        long k = CellEntry.key(x, y);
+        int old = table.find(k);
+        CellRange[] oldRanges = ranges(old);
+        long[] oldNodes = new long[oldRanges.length];
+        for (int i = 0; i < oldRanges.length; i++) {
+            oldNodes[i] = graph.rangeNode(oldRanges[i]);
+        }
+        graph.remove(k, precedents(old), oldRanges); // Drop the references of the old content
+        for (int i = 0; i < oldRanges.length; i++) {
+            if (graph.rangeNode(oldRanges[i]) == null) {
+                rangeOrders.remove(oldNodes[i]); // No formula refers to this range anymore
+            }
+        }
+        int c = -1;
+        if (s == null || s.isEmpty()) {
+            table.remove(k); // Empty cells are not stored
+        } else {
+            c = table.put(k, new SCell(s, x, y)); // Parse the content, and keep its fields in the table
+        }
+        CellRange[] ranges = ranges(c);
+        graph.add(k, precedents(c), ranges);
+        for (CellRange r : ranges) {
+            indexColumns(r);
+        }
+        index(k);
+        for (CellRange r : ranges) {
+            long node = graph.rangeNode(r);
+            if (!rangeOrders.containsKey(node)) { // A new range: the cells within it are not in the cone of this cell
+                updateOrder(node);
+                dirty.add(node); // Its formulas wait for the dirty cells within it
+            }
+        }
+        for (long d : graph.orderedCone(k)) { // Only the changed cell and its dependents are affected
+            updateOrder(d);
+            if (orderOf(d) == Ex2Utils.ERR) {
+                dirty.add(d); // Marked as a cycle by eval()
+            }
+        }
+        HashSet<Long> changed = new HashSet<>(); // Cells whose value may change
+        ArrayDeque<Long> queue = new ArrayDeque<>();
+        changed.add(k);
+        queue.add(k);
+        while (!queue.isEmpty()) { // Follows only the references the last evaluations actually read
+            long d = queue.poll();
+            dirty.add(d);
+            for (long e : graph.dependentsOf(d)) {
+                if (reads(e, d) && changed.add(e)) {
+                    queue.add(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks whether a change to a cell (or range node) may change a cell (or range node) which depends on it.
+     * A formula with branches only depends on what its last evaluation read: the branch an IF did not take
+     * is not evaluated again until the condition changes.
+     *
+     * @param e The key of the dependent.
+     * @param d The key of the changed precedent.
+     * @return False if the last evaluation of the dependent did not read the precedent.
+     */
+    private boolean reads(long e, long d) {
+        if (DependencyGraph.isRange(e)) {
+            return true; // A range node only passes its cells on to its formulas
+        }
+        int i = table.find(e);
+        Formula.Reads r = i < 0 ? null : table.reads(i);
+        if (r == null) { // Not evaluated yet, or without branches
+            return true;
+        }
+        return DependencyGraph.isRange(d) ? r.contains(graph.range(d)) : r.contains(d);
     }
 
     /**
-     * Evaluates all the cells in the spreadsheet.
+     * Evaluates the cells that changed (or depend on a change) since the last evaluation.
      *
-     * This ensures formulas are computed and dependencies are resolved.
+     * The orders of the dirty cells are already up to date (see set()), so they are computed
+     * level by level, and the cost is proportional to the changed region rather than to the whole sheet.
      */
     @Override
     public void eval() {
-        int[][] dd = depth(); // Get the depth of each cell
-        int depth = 0; // Current depth being processed
-        int count = 0; // Number of cells evaluated
-        int max = width() * height(); // Total number of cells
-        boolean changed = true; // Track if any cells were updated
-
-        // Process cells layer by layer based on their depth
-        while (count < max && changed) {
-            changed = false;
-            for (int x = 0; x < width(); x++) { // Iterate through rows
-                for (int y = 0; y < height(); y++) { // Iterate through columns
-                    SCell c = (SCell) get(x, y);
-                    if (dd[x][y] == -1) { // Cyclic dependency
-                        c.setType(Ex2Utils.ERR_CYCLE_FORM);
-                        changed = true;
-                        count++;
-                    } else if (dd[x][y] == depth) { // Compute cells at the current depth
-                        String res = eval(x, y); // Evaluate the cell
-                        c.setComputed(res); // Set the computed value
-                        changed = true;
-                        count++;
+        if (pool != null && mode == DATAFLOW) {
+            evalDataflow();
+            dirty.clear();
+            return;
+        }
+        ArrayList<ArrayList<Long>> levels = new ArrayList<>(); // Dirty cells grouped by their order
+        for (long k : dirty) {
+            int order = orderOf(k);
+            if (order == Ex2Utils.ERR) { // Cyclic dependency
+                int i = DependencyGraph.isRange(k) ? -1 : table.find(k);
+                if (i >= 0) {
+                    table.setType(i, Ex2Utils.ERR_CYCLE_FORM);
+                    table.setReads(i, null); // Any change within the cycle affects it
+                    index(k);
+                }
+                continue;
+            }
+            while (levels.size() <= order) {
+                levels.add(new ArrayList<>());
+            }
+            levels.get(order).add(k);
+        }
+        for (ArrayList<Long> level : levels) { // A cell only refers to cells of lower levels
+            level = evalColumns(level);
+            if (pool != null && level.size() > BATCH) {
+                pool.invoke(new LevelTask(level, 0, level.size())); // Cells of the same level are independent
+            } else {
+                for (long k : level) {
+                    recalc(k);
+                }
+            }
+        }
+        dirty.clear();
+    }
+
+    /**
+     * Evaluates the runs of a level which share a formula: consecutive cells of a column whose formulas
+     * have the same template (see Formula.compile) are evaluated together, a block of rows at a time,
+     * walking their shared tree once per block rather than once per cell, with SIMD instructions
+     * when the Vector API is available (see Formula.evalColumn).
+     *
+     * @param level The cells of a level.
+     * @return The other cells of the level, to be evaluated one by one.
+     */
+    private ArrayList<Long> evalColumns(ArrayList<Long> level) {
+        if (level.size() < RUN) {
+            return level;
+        }
+        long[] keys = new long[level.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = level.get(i);
+        }
+        Arrays.sort(keys); // By column, then by row (range nodes first)
+        ArrayList<Long> rest = new ArrayList<>();
+        ArrayList<long[]> blocks = new ArrayList<>(); // The key of the first cell and the length of each block
+        int i = 0;
+        while (i < keys.length) {
+            int j = i + 1;
+            Formula f = columnar(keys[i]);
+            if (f != null) {
+                while (j < keys.length && keys[j] == keys[j - 1] + 1 && columnar(keys[j]) == f) {
+                    j++; // The next row of the same column, with the same template
+                }
+            }
+            if (j - i < RUN) {
+                for (int m = i; m < j; m++) {
+                    rest.add(keys[m]);
+                }
+            } else {
+                for (int m = i; m < j; m += BLOCK) {
+                    blocks.add(new long[]{keys[m], Math.min(BLOCK, j - m)});
+                }
+            }
+            i = j;
+        }
+        if (pool != null && blocks.size() > 1) {
+            pool.invoke(new ColumnTask(blocks, 0, blocks.size()));
+        } else {
+            for (long[] b : blocks) {
+                recalc(b[0], (int) b[1]);
+            }
+        }
+        return rest;
+    }
+
+    /**
+     * Returns the formula of a cell if it can be evaluated with other cells of its column:
+     * it refers to cells within the sheet only, and has no branches (whose reads are recorded one by one).
+     *
+     * @param k The key of the cell (or range node).
+     * @return The formula, or null.
+     */
+    private Formula columnar(long k) {
+        if (DependencyGraph.isRange(k)) {
+            return null;
+        }
+        int i = table.find(k);
+        Formula f = i < 0 ? null : table.formula(i);
+        return f == null || f.hasBranches() || refersOutside(i) ? null : f;
+    }
+
+    /**
+     * Evaluates the dirty cells as a dataflow graph: each cell counts its dirty precedents,
+     * and is released to the pool as soon as the last of them is computed, with no barrier between levels.
+     */
+    private void evalDataflow() {
+        HashMap<Long, AtomicInteger> pending = new HashMap<>(); // Dirty precedents not computed yet, per cell
+        for (long k : dirty) {
+            if (orderOf(k) == Ex2Utils.ERR) { // Cyclic dependency
+                int i = DependencyGraph.isRange(k) ? -1 : table.find(k);
+                if (i >= 0) {
+                    table.setType(i, Ex2Utils.ERR_CYCLE_FORM);
+                    table.setReads(i, null); // Any change within the cycle affects it
+                    index(k);
+                }
+            } else {
+                pending.put(k, new AtomicInteger());
+            }
+        }
+        for (long k : pending.keySet()) {
+            for (long d : graph.dependentsOf(k)) {
+                AtomicInteger n = pending.get(d);
+                if (n != null) {
+                    n.incrementAndGet();
+                }
+            }
+        }
+        ArrayList<Long> roots = new ArrayList<>(); // Cells with no dirty precedents can start right away
+        for (Map.Entry<Long, AtomicInteger> e : pending.entrySet()) {
+            if (e.getValue().get() == 0) {
+                roots.add(e.getKey());
+            }
+        }
+        pool.invoke(new CellTask(null, roots, pending));
+    }
+
+    /**
+     * Enables (or disables) the parallel evaluation of each level by eval().
+     *
+     * Cells at the same depth never refer to each other, so each level is split among the threads
+     * of the pool, and the next level starts once it is done. The results are the same as a serial evaluation.
+     *
+     * @param pool The pool to evaluate with, e.g., ForkJoinPool.commonPool(), or null to evaluate serially.
+     */
+    public void setParallelism(ForkJoinPool pool) {
+        setParallelism(pool, LEVELS);
+    }
+
+    /**
+     * Enables (or disables) the parallel evaluation by eval(), with the given scheduling:
+     * LEVELS evaluates one depth level at a time, DATAFLOW runs each cell as soon as its precedents are done,
+     * which keeps the threads busy when a few expensive cells would hold back a whole level.
+     *
+     * @param pool The pool to evaluate with (work-stealing), or null to evaluate serially.
+     * @param mode LEVELS or DATAFLOW.
+     */
+    public void setParallelism(ForkJoinPool pool, int mode) {
+        this.pool = pool;
+        this.mode = mode;
+    }
+
+    /**
+     * Evaluates a batch of released cells, and then the cells they release in turn.
+     * Released cells are kept in this task while they are few, and shared with other threads
+     * (as new tasks of BATCH cells) when there are more, so cheap cells do not pay for a task each.
+     */
+    @SuppressWarnings("serial") // Tasks are never serialized
+    private class CellTask extends CountedCompleter<Void> {
+        private final ArrayDeque<Long> cells; // Cells ready to be evaluated by this task
+        private final HashMap<Long, AtomicInteger> pending; // Shared counters of dirty precedents
+
+        CellTask(CountedCompleter<?> parent, Collection<Long> cells, HashMap<Long, AtomicInteger> pending) {
+            super(parent);
+            this.cells = new ArrayDeque<>(cells);
+            this.pending = pending;
+        }
+
+        @Override
+        public void compute() {
+            while (!cells.isEmpty()) {
+                long k = cells.poll();
+                recalc(k);
+                for (long d : graph.dependentsOf(k)) {
+                    AtomicInteger n = pending.get(d);
+                    if (n != null && n.decrementAndGet() == 0) { // k was the last input of d
+                        cells.add(d);
+                    }
+                }
+                if (cells.size() > BATCH) { // More than enough work: let other threads steal a batch
+                    ArrayList<Long> batch = new ArrayList<>();
+                    while (batch.size() < BATCH) {
+                        batch.add(cells.pollLast());
+                    }
+                    addToPendingCount(1);
+                    new CellTask(this, batch, pending).fork();
+                }
+            }
+            tryComplete();
+        }
+    }
+
+    /**
+     * Evaluates a slice of the cells of one level, splitting it in halves down to BATCH cells.
+     */
+    @SuppressWarnings("serial") // Tasks are never serialized
+    private class LevelTask extends RecursiveAction {
+        private final ArrayList<Long> level; // The keys of the cells of the level
+        private final int from, to; // The slice of this task
+
+        LevelTask(ArrayList<Long> level, int from, int to) {
+            this.level = level;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BATCH) {
+                for (int i = from; i < to; i++) {
+                    recalc(level.get(i));
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new LevelTask(level, from, mid), new LevelTask(level, mid, to));
+            }
+        }
+    }
+
+    /**
+     * Evaluates blocks of cells of the same column with a shared formula, splitting the blocks among the threads.
+     */
+    @SuppressWarnings("serial") // Tasks are never serialized
+    private class ColumnTask extends RecursiveAction {
+        private final ArrayList<long[]> blocks; // The first key and length of each block
+        private final int from, to; // The slice of this task
+
+        ColumnTask(ArrayList<long[]> blocks, int from, int to) {
+            this.blocks = blocks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                recalc(blocks.get(from)[0], (int) blocks.get(from)[1]);
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new ColumnTask(blocks, from, mid), new ColumnTask(blocks, mid, to));
+            }
+        }
+    }
+
+    /**
+     * Recomputes consecutive cells of a column which share a formula (see evalColumns),
+     * whose precedents are all up to date.
+     *
+     * @param k The key of the first cell.
+     * @param n The number of cells.
+     */
+    private void recalc(long k, int n) {
+        Formula f = table.formula(table.find(k));
+        double[] values = f.evalColumn(this, CellEntry.keyX(k), CellEntry.keyY(k), n);
+        for (int m = 0; m < n; m++) {
+            int i = table.find(k + m);
+            table.setType(i, Ex2Utils.FORM); // Clear the error of a previous evaluation
+            table.setReads(i, null);
+            table.setValue(i, checked(i, values[m]));
+            index(k + m);
+        }
+    }
+
+    /**
+     * Recomputes a single cell whose precedents are all up to date.
+     *
+     * @param k The key of the cell.
+     */
+    private void recalc(long k) {
+        if (DependencyGraph.isRange(k)) {
+            return; // A range node only passes its cells on to its formulas
+        }
+        int i = table.find(k);
+        if (i < 0 || table.formula(i) == null) { // Numbers, text and wrong formats do not depend on other cells
+            return;
+        }
+        table.setType(i, Ex2Utils.FORM); // Clear the error of a previous evaluation
+        table.setReads(i, null);
+        if (refersOutside(i)) { // Reference outside the sheet
+            table.setType(i, Ex2Utils.ERR_FORM_FORMAT);
+            table.setValue(i, Double.NaN);
+        } else if (table.formula(i).hasBranches()) { // Only what this evaluation reads can change its value
+            Formula.Reads reads = new Formula.Reads();
+            table.setValue(i, compute(i, reads));
+            table.setReads(i, reads);
+        } else {
+            table.setValue(i, compute(i, null));
+        }
+        index(k); // Before the formulas of the ranges it lies within (see updateOrder)
+    }
+
+    /**
+     * Recomputes the order (depth) of a cell from the orders of its precedents.
+     * A cell closing a cycle, or depending on one, gets -1.
+     * A range node gets the highest order of the formulas within it (0 if none), so its formulas come after them.
+     *
+     * @param k The key of the cell (or range node), whose precedents have an up-to-date order.
+     */
+    private void updateOrder(long k) {
+        if (DependencyGraph.isRange(k)) {
+            int order = 0;
+            if (graph.closesCycle(k)) {
+                order = Ex2Utils.ERR;
+            } else {
+                for (long p : graph.precedentsOf(k)) { // The formulas within the range
+                    int o = orderOf(p);
+                    if (o == Ex2Utils.ERR) { // Depends on a cycle
+                        order = Ex2Utils.ERR;
+                        break;
                     }
+                    order = Math.max(order, o);
+                }
+            }
+            rangeOrders.put(k, order);
+            return;
+        }
+        int i = table.find(k);
+        if (i < 0) {
+            return; // An empty cell always has order 0
+        }
+        int order = 0;
+        if (graph.closesCycle(k)) {
+            order = Ex2Utils.ERR;
+        } else {
+            for (long p : graph.precedentsOf(k)) { // The cells and the range nodes it refers to
+                int o = orderOf(p);
+                if (o == Ex2Utils.ERR) { // Depends on a cycle (possibly through a range)
+                    order = Ex2Utils.ERR;
+                    break;
                 }
+                order = Math.max(order, o + 1);
             }
-            depth++;
         }
+        table.setOrder(i, order);
+    }
+
+    /**
+     * @param k The key of a cell or range node.
+     * @return Its order (see updateOrder).
+     */
+    private int orderOf(long k) {
+        if (DependencyGraph.isRange(k)) {
+            return rangeOrders.getOrDefault(k, 0);
+        }
+        int i = table.find(k);
+        return i < 0 ? 0 : table.order(i);
+    }
+
+    /**
+     * Returns the keys of the (distinct) cells that a cell refers to.
+     * A formula with a reference outside this sheet is an error which does not depend on any cell.
+     *
+     * @param i The slot of the cell, or -1 for an empty cell.
+     * @return The keys of its precedents (empty for non-formula cells).
+     */
+    private long[] precedents(int i) {
+        if (i < 0 || table.formula(i) == null || refersOutside(i)) {
+            return NO_PRECEDENTS;
+        }
+        long k = table.key(i);
+        return table.formula(i).references(CellEntry.keyX(k), CellEntry.keyY(k));
+    }
+
+    /**
+     * Returns the ranges that a cell refers to, each one being a single dependency.
+     *
+     * @param i The slot of the cell, or -1 for an empty cell.
+     * @return Its ranges (empty for non-formula cells, or a formula referring outside this sheet).
+     */
+    private CellRange[] ranges(int i) {
+        if (i < 0 || table.formula(i) == null || refersOutside(i)) {
+            return NO_RANGES;
+        }
+        long k = table.key(i);
+        return table.formula(i).ranges(CellEntry.keyX(k), CellEntry.keyY(k));
     }
 
     /**
@@ -168,81 +925,791 @@ public class Ex2Sheet implements Sheet {
     }
 
     /**
-     * Calculates the depth of each cell for evaluation.
+     * Returns the depth of each cell for evaluation.
      *
-     * Depth is determined by dependencies, ensuring no cell is evaluated before its dependencies.
+     * Depth is determined by dependencies, ensuring no cell is evaluated before its dependencies:
+     * a cell which depends on no other cell has depth 0, else 1 + the max depth of the cells it refers to,
+     * and -1 in case of a cycle. The depths are maintained by set(), so this is just a copy
+     * of the populated cells (empty cells have depth 0).
      *
      * @return A 2D matrix representing the depth of each cell.
      */
     @Override
     public int[][] depth() {
         int[][] ans = new int[width()][height()]; // Matrix to store the depth of each cell
+        for (long k : table.keys()) {
+            ans[CellEntry.keyX(k)][CellEntry.keyY(k)] = table.order(table.find(k));
+        }
+        return ans;
+    }
 
-        // Initialize depths based on cell types
-        for (int x = 0; x < width(); x++) {
-            for (int y = 0; y < height(); y++) {
-                Cell c = get(x, y);
-                if (c.getType() == Ex2Utils.NUMBER || c.getType() == Ex2Utils.TEXT) {
-                    table[x][y].setOrder(0); // Numbers and text have depth 0
-                    ans[x][y] = 0;
-                } else {
-                    if (c.getType() == Ex2Utils.ERR_FORM_FORMAT) {
-                        table[x][y].setData(table[x][y].toString()); // Reset invalid formulas
-                    }
-                    ans[x][y] = -1; // Mark other cells as uncomputed
-                    table[x][y].setOrder(-1);
+    /**
+     * Finds the exact groups of cells that form circular references, e.g., [A0, A1] for A0=A1+1 and A1=A0.
+     * Cells that only depend on a cycle are not reported (although their depth is -1 as well).
+     *
+     * @return The strongly connected components of the dependency graph which form cycles.
+     */
+    public List<List<String>> cycles() {
+        ArrayList<Long> forms = new ArrayList<>();
+        for (long k : table.keys()) {
+            if (table.formula(table.find(k)) != null) {
+                forms.add(k); // Only formulas can be part of a cycle
+            }
+        }
+        List<List<String>> ans = new ArrayList<>();
+        for (List<Long> component : graph.cycles(forms)) {
+            List<String> names = new ArrayList<>();
+            for (long k : component) {
+                names.add(new CellEntry(CellEntry.keyX(k), CellEntry.keyY(k)).toString());
+            }
+            ans.add(names);
+        }
+        return ans;
+    }
+
+    /**
+     * Checks whether a cell refers to a cell outside this sheet.
+     *
+     * @param i The slot of the cell.
+     * @return True if one of its references (or ranges) is out of bounds.
+     */
+    private boolean refersOutside(int i) {
+        Formula f = table.formula(i);
+        long k = table.key(i);
+        return f != null && !f.fitsIn(CellEntry.keyX(k), CellEntry.keyY(k), width, height);
+    }
+
+    /**
+     * Saves the populated cells, one "x,y,data" line each (column by column), after a header line.
+     * Data which contains a comma or starts with a quote is quoted (see quote), so load() reads it back exactly.
+     * The lines are streamed through a large buffer, so nothing the size of the sheet is built in memory.
+     *
+     * @param fileName The name of the file.
+     * @throws IOException If the file cannot be written.
+     */
+    @Override
+    public void save(String fileName) throws IOException {
+        long[] keys = table.keys();
+        Arrays.sort(keys); // By column, then by row
+        try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+                Files.newOutputStream(Paths.get(fileName)), StandardCharsets.UTF_8), 1 << 16)) {
+            out.write(HEADER);
+            out.newLine();
+            for (long k : keys) {
+                out.write(Integer.toString(CellEntry.keyX(k)));
+                out.write(',');
+                out.write(Integer.toString(CellEntry.keyY(k)));
+                out.write(',');
+                out.write(quote(table.text(table.find(k))));
+                out.newLine();
+            }
+        }
+    }
+
+    /**
+     * Replaces the content of this sheet with the cells of a file in the format of save():
+     * a header line, then "x,y,data" lines, possibly followed by ",remarks" (ignored), see parseLine.
+     *
+     * The file is mapped and split into line-aligned chunks, which are parsed (and their formulas compiled)
+     * in parallel. Then the dependencies and orders of all the cells are built in a single pass.
+     * Cells outside this sheet and malformed lines are skipped. The loaded cells are evaluated by eval().
+     * A file written by saveBinary() is recognized by its first bytes, and loaded by loadBinary().
+     * Then the journal of the file, if any (see openJournal), is replayed on top of it.
+     *
+     * @param fileName The name of the file.
+     * @throws IOException If the file cannot be read.
+     */
+    @Override
+    public void load(String fileName) throws IOException {
+        Journal open = journal;
+        journal = null; // The replayed changes are in their journal already
+        try {
+            read(fileName);
+            Journal.replay(fileName, this);
+        } finally {
+            journal = open;
+        }
+    }
+
+    /**
+     * Replaces the content of this sheet with the cells of a file, in either format, without its journal.
+     *
+     * @param fileName The name of the file.
+     * @throws IOException If the file cannot be read.
+     */
+    void read(String fileName) throws IOException {
+        if (isBinary(fileName)) {
+            loadBinary(fileName);
+            return;
+        }
+        ArrayList<ArrayList<SCell>> chunks = new ArrayList<>();
+        try (FileChannel ch = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            long size = ch.size();
+            int parts = (int) Math.max(Math.min(size / CHUNK, 4L * ForkJoinPool.getCommonPoolParallelism()),
+                    size / Integer.MAX_VALUE + 1); // A mapped chunk must fit an int
+            ArrayList<long[]> bounds = new ArrayList<>();
+            long start = lineStart(ch, 0); // Skip the header
+            for (int p = 1; p <= parts; p++) {
+                long end = p == parts ? size : Math.max(start, lineStart(ch, size * p / parts));
+                bounds.add(new long[]{start, end});
+                chunks.add(new ArrayList<>());
+                start = end;
+            }
+            (pool != null ? pool : ForkJoinPool.commonPool()).invoke(new ChunkTask(ch, bounds, chunks, 0, parts));
+        } catch (UncheckedIOException e) { // Thrown by a chunk task
+            throw e.getCause();
+        }
+        clear();
+        for (ArrayList<SCell> chunk : chunks) { // In the order of the file, so a repeated cell keeps its last line
+            for (SCell c : chunk) {
+                table.put(CellEntry.key(c.getX(), c.getY()), c);
+            }
+        }
+        link();
+    }
+
+    /**
+     * Opens the journal of a file (see Journal): from now on, every change of a cell is appended to it,
+     * at O(1) I/O per edit, and load() replays it over the file. The journal is folded into the file
+     * in the background once it grows beyond Journal.LIMIT bytes.
+     * This sheet is expected to hold the content of the file and its journal, e.g., after load().
+     *
+     * @param fileName The name of the file (created empty if it does not exist).
+     * @throws IOException If the journal cannot be opened.
+     */
+    public void openJournal(String fileName) throws IOException {
+        openJournal(fileName, Journal.LIMIT);
+    }
+
+    /**
+     * Opens the journal of a file (see openJournal(String)), folded into the file beyond a given size.
+     *
+     * @param fileName The name of the file (created empty if it does not exist).
+     * @param limit    The bytes of journal after which it is folded into the file.
+     * @throws IOException If the journal cannot be opened.
+     */
+    public void openJournal(String fileName, long limit) throws IOException {
+        closeJournal();
+        journal = new Journal(fileName, width, height, limit);
+    }
+
+    /**
+     * Forces the changes to the disk and closes the journal (if open), once its compaction (if any) is done.
+     *
+     * @throws IOException If the journal cannot be written.
+     */
+    public void closeJournal() throws IOException {
+        if (journal != null) {
+            Journal j = journal;
+            journal = null;
+            j.close();
+        }
+    }
+
+    /**
+     * Finds the first line starting at or after a position of a file.
+     *
+     * @param ch  The file.
+     * @param pos A position.
+     * @return The position after the next line break (the size of the file if none).
+     * @throws IOException If the file cannot be read.
+     */
+    private static long lineStart(FileChannel ch, long pos) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        long size = ch.size();
+        while (pos < size) {
+            buf.clear();
+            int n = ch.read(buf, pos);
+            for (int i = 0; i < n; i++) {
+                if (buf.get(i) == '\n') {
+                    return pos + i + 1;
                 }
             }
+            pos += n;
         }
+        return size;
+    }
+
+    /**
+     * Parses the lines of a slice of the chunks of a file, splitting it in halves down to a single chunk.
+     */
+    @SuppressWarnings("serial") // Tasks are never serialized
+    private class ChunkTask extends RecursiveAction {
+        private final FileChannel ch; // The file
+        private final ArrayList<long[]> bounds; // The start and end of each chunk, at line starts
+        private final ArrayList<ArrayList<SCell>> chunks; // The cells parsed from each chunk
+        private final int from, to; // The slice of this task
 
-        // Compute depths iteratively
-        int count = 0;
-        int depth = 0;
-        int max = width() * height();
-        boolean changed = true;
+        ChunkTask(FileChannel ch, ArrayList<long[]> bounds, ArrayList<ArrayList<SCell>> chunks, int from, int to) {
+            this.ch = ch;
+            this.bounds = bounds;
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+        }
 
-        while (count < max && changed) {
-            changed = false;
-            for (int x = 0; x < width(); x++) {
-                for (int y = 0; y < height(); y++) {
-                    if (ans[x][y] != -1) { // Skip already computed cells
-                        continue;
-                    }
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                long[] b = bounds.get(from);
+                try {
+                    parse(ch.map(FileChannel.MapMode.READ_ONLY, b[0], b[1] - b[0]), chunks.get(from));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new ChunkTask(ch, bounds, chunks, from, mid), new ChunkTask(ch, bounds, chunks, mid, to));
+            }
+        }
+    }
+
+    /**
+     * Parses the "x,y,data" lines of a chunk of a file.
+     *
+     * @param buf  The chunk, starting at a line.
+     * @param into The list to add the cells to.
+     */
+    private void parse(MappedByteBuffer buf, ArrayList<SCell> into) {
+        byte[] line = new byte[256];
+        int from = 0, n = buf.limit();
+        while (from < n) {
+            int to = from;
+            while (to < n && buf.get(to) != '\n') {
+                to++;
+            }
+            int len = to - from;
+            if (len > line.length) {
+                line = new byte[Math.max(len, 2 * line.length)];
+            }
+            buf.get(from, line, 0, len);
+            SCell c = parseLine(new String(line, 0, len, StandardCharsets.UTF_8));
+            if (c != null) {
+                into.add(c);
+            }
+            from = to + 1;
+        }
+    }
+
+    /**
+     * Parses a line of a file: "x,y,data", possibly followed by ",remarks".
+     * Quoted data (see quote) is read exactly, up to its closing quote. Otherwise, as in files not written
+     * by save(), the data of a formula may contain commas, so it is the longest prefix of the rest of the line
+     * which compiles. A number is followed by remarks only, while a text keeps the rest of the line.
+     *
+     * @param s The line, without its line break.
+     * @return The cell, or null if the line is malformed or the cell lies outside this sheet.
+     */
+    private SCell parseLine(String s) {
+        int c1 = s.indexOf(','), c2 = c1 < 0 ? -1 : s.indexOf(',', c1 + 1);
+        if (c2 < 0) {
+            return null;
+        }
+        int x, y;
+        try {
+            x = Integer.parseInt(s.substring(0, c1).trim());
+            y = Integer.parseInt(s.substring(c1 + 1, c2).trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        String data = s.substring(c2 + 1);
+        if (data.endsWith("\r")) {
+            data = data.substring(0, data.length() - 1);
+        }
+        String quoted = unquote(data);
+        if (quoted != null) {
+            data = quoted;
+        }
+        if (!isIn(x, y) || data.isEmpty()) {
+            return null;
+        }
+        SCell ans = new SCell(data, x, y);
+        if (quoted != null) {
+            return ans; // Exactly what was saved
+        }
+        if (ans.getType() == Ex2Utils.ERR_FORM_FORMAT) { // Trim the remarks until the formula compiles
+            for (int c = data.lastIndexOf(','); c > 0; c = data.lastIndexOf(',', c - 1)) {
+                SCell shorter = new SCell(data.substring(0, c), x, y);
+                if (shorter.getType() != Ex2Utils.ERR_FORM_FORMAT) {
+                    return shorter;
+                }
+            }
+        } else if (ans.getType() == Ex2Utils.TEXT && data.indexOf(',') > 0) {
+            SCell number = new SCell(data.substring(0, data.indexOf(',')), x, y);
+            if (number.getType() == Ex2Utils.NUMBER) {
+                return number;
+            }
+        }
+        return ans;
+    }
+
+    // Quotes the data of a cell for a line of save() if it contains a comma or starts with a quote,
+    // doubling its quotes, e.g., a,"b" is written "a,""b"""
+    private static String quote(String data) {
+        if (data.indexOf(',') < 0 && !data.startsWith("\"")) {
+            return data;
+        }
+        return '"' + data.replace("\"", "\"\"") + '"';
+    }
+
+    // Returns the data of a quoted field (see quote), ignoring what follows its closing quote,
+    // or null if the field does not start with a quote or is not closed
+    private static String unquote(String s) {
+        if (!s.startsWith("\"")) {
+            return null;
+        }
+        StringBuilder ans = new StringBuilder();
+        for (int i = 1; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c != '"') {
+                ans.append(c);
+            } else if (i + 1 < s.length() && s.charAt(i + 1) == '"') {
+                ans.append('"');
+                i++;
+            } else {
+                return ans.toString();
+            }
+        }
+        return null;
+    }
+
+    // Empties this sheet, keeping its dimensions and settings
+    private void clear() {
+        table = new CellMap(table.isOffHeap());
+        graph = new DependencyGraph();
+        dirty.clear();
+        rangeOrders.clear();
+        columns.clear();
+        Arrays.fill(views, null);
+    }
+
+    /**
+     * Builds the dependencies and orders of all the cells at once, after they were put in the table,
+     * and marks the formulas to be evaluated by eval().
+     */
+    private void link() {
+        ArrayList<Long> nodes = new ArrayList<>(); // The formula cells and the range nodes
+        LinkedHashSet<CellRange> all = new LinkedHashSet<>();
+        for (long k : table.keys()) {
+            int i = table.find(k);
+            if (table.formula(i) != null) {
+                CellRange[] ranges = ranges(i);
+                graph.add(k, precedents(i), ranges);
+                all.addAll(Arrays.asList(ranges));
+                nodes.add(k);
+            }
+        }
+        link(nodes, all);
+    }
+
+    /**
+     * Orders all the cells at once, after the references of the formulas were added to the graph,
+     * and marks the formulas to be evaluated by eval().
+     *
+     * @param nodes  The formula cells (the range nodes are added to it).
+     * @param ranges The distinct ranges of the formulas.
+     */
+    private void link(ArrayList<Long> nodes, Collection<CellRange> ranges) {
+        for (CellRange r : ranges) {
+            indexColumns(r);
+            nodes.add(graph.rangeNode(r));
+        }
+        for (long d : graph.ordered(nodes)) { // Each cell after the ones it refers to
+            updateOrder(d);
+        }
+        dirty.addAll(nodes);
+    }
 
-                    Cell c = get(x, y);
-                    boolean canCompute = true;
-                    for (String str : ((SCell) c).getDependencies()) { // Check dependencies
-                        Index2D cord = new CellEntry(str);
-                        if (!isIn(cord.getX(), cord.getY())) {
-                            c.setType(Ex2Utils.ERR_FORM_FORMAT); // Mark invalid references
-                            c.setOrder(0);
-                            ans[x][y] = 0;
-                            continue;
-                        } else if (ans[cord.getX()][cord.getY()] == -1) {
-                            canCompute = false; // Dependencies not ready
+    /**
+     * Saves the populated cells in a binary, column-oriented file, which loadBinary() reads without parsing.
+     *
+     * The file holds a header (MAGIC, VERSION, the dimensions, the counts and the offsets of its sections),
+     * then one column per field of the cells, sorted by key: the packed keys, the numbers (as raw doubles),
+     * the index of the text of each cell in the dictionary (-1 for a number), the index of its template
+     * (-1 if not a formula) and its type. Then comes the dictionary of the distinct texts (UTF-8, each one
+     * after its length in bytes), and the templates: formulas filled down a column share a template
+     * (see Formula.compile), stored once with a cell using it and its references relative to that cell,
+     * so neither the formulas nor their dependencies are parsed again on load.
+     *
+     * The file also holds the computed values, with the type, order and hash of each cell (see saveBinary(String,
+     * boolean)), so a loaded sheet can be shown before it is evaluated.
+     *
+     * @param fileName The name of the file.
+     * @throws IOException If the file cannot be written.
+     */
+    public void saveBinary(String fileName) throws IOException {
+        saveBinary(fileName, true);
+    }
+
+    /**
+     * Saves the populated cells in a binary file (see saveBinary(String)), with or without their computed values.
+     *
+     * With the values (the VALUES flag of the header), four more columns follow the types: the computed value,
+     * the hash (see hashes) and the order of each cell, and its type as evaluated. A cell whose value
+     * is not up to date (it waits for eval(), or depends on a cell which does) or which is part of a cycle
+     * gets the hash 0, so it is evaluated again on load.
+     *
+     * @param fileName   The name of the file.
+     * @param withValues Whether the computed values are saved as well.
+     * @throws IOException If the file cannot be written.
+     */
+    public void saveBinary(String fileName, boolean withValues) throws IOException {
+        long[] keys = table.keys();
+        Arrays.sort(keys); // By column, then by row
+        int n = keys.length;
+        int[] textIds = new int[n], templateIds = new int[n];
+        byte[] types = new byte[n];
+        HashMap<String, Integer> strings = new HashMap<>();
+        ArrayList<byte[]> dictionary = new ArrayList<>();
+        IdentityHashMap<Formula, Integer> templates = new IdentityHashMap<>(); // Shared trees (see Formula.compile)
+        ArrayList<Integer> firsts = new ArrayList<>(); // The first cell of each template
+        long dictionaryBytes = 0;
+        for (int j = 0; j < n; j++) {
+            int i = table.find(keys[j]);
+            Formula f = table.formula(i);
+            int type = table.type(i);
+            types[j] = (byte) (f != null ? Ex2Utils.FORM : type == Ex2Utils.NUMBER || type == Ex2Utils.TEXT
+                    ? type : Ex2Utils.ERR_FORM_FORMAT); // As parsed, before any evaluation
+            textIds[j] = -1;
+            if (type != Ex2Utils.NUMBER || f != null) {
+                Integer id = strings.get(table.text(i));
+                if (id == null) {
+                    id = dictionary.size();
+                    strings.put(table.text(i), id);
+                    dictionary.add(table.text(i).getBytes(StandardCharsets.UTF_8));
+                    dictionaryBytes += 4 + dictionary.get(id).length;
+                }
+                textIds[j] = id;
+            }
+            templateIds[j] = -1;
+            if (f != null) {
+                Integer id = templates.get(f);
+                if (id == null) {
+                    id = firsts.size();
+                    templates.put(f, id);
+                    firsts.add(j);
+                }
+                templateIds[j] = id;
+            }
+        }
+        long[] hashes = null;
+        HashSet<Long> stale = new HashSet<>(); // Formulas whose value is not up to date
+        if (withValues) {
+            ArrayList<Long> nodes = new ArrayList<>();
+            HashSet<Long> ranges = new HashSet<>();
+            for (long k : keys) {
+                if (table.formula(table.find(k)) != null) {
+                    nodes.add(k);
+                    for (long p : graph.precedentsOf(k)) {
+                        if (DependencyGraph.isRange(p) && ranges.add(p)) {
+                            nodes.add(p);
                         }
                     }
+                }
+            }
+            hashes = hashes(graph.ordered(nodes));
+            for (long d : dirty) {
+                graph.cone(d, stale);
+            }
+        }
+        long dictionaryOffset = HEAD + (withValues ? 46L : 25L) * n;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(Paths.get(fileName)), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(n);
+            out.writeInt(dictionary.size());
+            out.writeInt(firsts.size());
+            out.writeInt(withValues ? VALUES : 0); // Flags
+            out.writeLong(dictionaryOffset);
+            out.writeLong(dictionaryOffset + dictionaryBytes); // The templates
+            for (long k : keys) {
+                out.writeLong(k);
+            }
+            for (long k : keys) {
+                int i = table.find(k);
+                out.writeDouble(table.type(i) == Ex2Utils.NUMBER && table.formula(i) == null
+                        ? table.value(i) : Double.NaN);
+            }
+            for (int id : textIds) {
+                out.writeInt(id);
+            }
+            for (int id : templateIds) {
+                out.writeInt(id);
+            }
+            out.write(types);
+            if (withValues) {
+                for (long k : keys) {
+                    int i = table.find(k);
+                    out.writeDouble(table.formula(i) != null ? table.value(i) : Double.NaN);
+                }
+                for (long k : keys) {
+                    int i = table.find(k);
+                    boolean valid = !stale.contains(k) && table.order(i) != Ex2Utils.ERR;
+                    out.writeLong(valid ? hashes[i] : 0);
+                }
+                for (long k : keys) {
+                    out.writeInt(table.order(table.find(k)));
+                }
+                for (long k : keys) {
+                    out.writeByte(table.type(table.find(k)));
+                }
+            }
+            for (byte[] b : dictionary) {
+                out.writeInt(b.length);
+                out.write(b);
+            }
+            for (int j : firsts) {
+                int x = CellEntry.keyX(keys[j]), y = CellEntry.keyY(keys[j]);
+                Formula f = table.formula(table.find(keys[j]));
+                out.writeInt(textIds[j]);
+                out.writeInt(x);
+                out.writeInt(y);
+                long[] refs = f.references(0, 0); // Relative to the cell
+                out.writeInt(refs.length);
+                for (long p : refs) {
+                    out.writeLong(p);
+                }
+                CellRange[] ranges = f.ranges(0, 0);
+                out.writeInt(ranges.length);
+                for (CellRange r : ranges) {
+                    out.writeLong(CellEntry.key(r.getX1(), r.getY1()));
+                    out.writeLong(CellEntry.key(r.getX2(), r.getY2()));
+                }
+            }
+        }
+    }
 
-                    if (canCompute) {
-                        c.setOrder(depth); // Assign depth if dependencies are computed
-                        ans[x][y] = depth;
-                        count++;
-                        changed = true;
+    /**
+     * Replaces the content of this sheet with the cells of a file written by saveBinary().
+     *
+     * The columns of the file are mapped and read in place: numbers are raw doubles, each distinct text
+     * is decoded once, each template is compiled once, and the references of a formula are its template's
+     * moved to the cell. Then the orders of all the cells are computed in a single pass (see load).
+     * Cells outside this sheet are skipped. The loaded cells are evaluated by eval().
+     *
+     * If the file holds the computed values, the hash of every cell is computed again from the loaded content.
+     * A formula whose hash matches the saved one gets its saved value, type and order, and is shown as is:
+     * only the formulas whose content or inputs differ (and the ones saved out of date) are left to eval().
+     *
+     * @param fileName The name of the file.
+     * @throws IOException If the file cannot be read, or is not a binary sheet file.
+     */
+    public void loadBinary(String fileName) throws IOException {
+        LongBuffer keys;
+        DoubleBuffer values;
+        IntBuffer textIds, templateIds;
+        ByteBuffer types;
+        DoubleBuffer computed = null; // The saved values (see saveBinary(String, boolean)), if any
+        LongBuffer saved = null;
+        IntBuffer orders = null;
+        ByteBuffer states = null;
+        String[] dictionary;
+        Formula[] formulas;
+        long[][] refs; // The references of each template, relative to its cells
+        CellRange[][] ranges; // The ranges of each template, relative to its cells
+        try (FileChannel ch = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            if (ch.size() < HEAD) {
+                throw new IOException("Not a sheet file: " + fileName);
+            }
+            ByteBuffer head = ch.map(FileChannel.MapMode.READ_ONLY, 0, HEAD);
+            if (head.getInt(0) != MAGIC || head.getInt(4) != VERSION) {
+                throw new IOException("Not a sheet file (or an unknown version): " + fileName);
+            }
+            int n = head.getInt(16);
+            long dictionaryOffset = head.getLong(32), templatesOffset = head.getLong(40);
+            keys = ch.map(FileChannel.MapMode.READ_ONLY, HEAD, 8L * n).asLongBuffer();
+            values = ch.map(FileChannel.MapMode.READ_ONLY, HEAD + 8L * n, 8L * n).asDoubleBuffer();
+            textIds = ch.map(FileChannel.MapMode.READ_ONLY, HEAD + 16L * n, 4L * n).asIntBuffer();
+            templateIds = ch.map(FileChannel.MapMode.READ_ONLY, HEAD + 20L * n, 4L * n).asIntBuffer();
+            types = ch.map(FileChannel.MapMode.READ_ONLY, HEAD + 24L * n, n);
+            if ((head.getInt(28) & VALUES) != 0 && head.getInt(8) == width && head.getInt(12) == height) {
+                computed = ch.map(FileChannel.MapMode.READ_ONLY, HEAD + 25L * n, 8L * n).asDoubleBuffer();
+                saved = ch.map(FileChannel.MapMode.READ_ONLY, HEAD + 33L * n, 8L * n).asLongBuffer();
+                orders = ch.map(FileChannel.MapMode.READ_ONLY, HEAD + 41L * n, 4L * n).asIntBuffer();
+                states = ch.map(FileChannel.MapMode.READ_ONLY, HEAD + 45L * n, n);
+            } // Else the values of a sheet of other dimensions may refer outside this one: evaluate them again
+
+            dictionary = new String[head.getInt(20)];
+            ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, dictionaryOffset, templatesOffset - dictionaryOffset);
+            byte[] bytes = new byte[256];
+            for (int d = 0; d < dictionary.length; d++) {
+                int len = buf.getInt();
+                if (len > bytes.length) {
+                    bytes = new byte[Math.max(len, 2 * bytes.length)];
+                }
+                buf.get(bytes, 0, len);
+                dictionary[d] = new String(bytes, 0, len, StandardCharsets.UTF_8);
+            }
+
+            int count = head.getInt(24);
+            formulas = new Formula[count];
+            refs = new long[count][];
+            ranges = new CellRange[count][];
+            buf = ch.map(FileChannel.MapMode.READ_ONLY, templatesOffset, ch.size() - templatesOffset);
+            for (int t = 0; t < count; t++) {
+                String text = dictionary[buf.getInt()];
+                formulas[t] = Formula.compile(text, 1, buf.getInt(), buf.getInt());
+                if (formulas[t] == null) {
+                    throw new IOException("Corrupt sheet file, wrong formula " + text + ": " + fileName);
+                }
+                refs[t] = new long[buf.getInt()];
+                for (int m = 0; m < refs[t].length; m++) {
+                    refs[t][m] = buf.getLong();
+                }
+                ranges[t] = new CellRange[buf.getInt()];
+                for (int m = 0; m < ranges[t].length; m++) {
+                    ranges[t][m] = new CellRange(buf.getLong(), buf.getLong());
+                }
+            }
+        }
+
+        clear();
+        ArrayList<Long> nodes = new ArrayList<>(); // The formula cells
+        LinkedHashSet<CellRange> all = new LinkedHashSet<>();
+        HashMap<Long, Integer> rows = new HashMap<>(); // The index of each formula in the columns of the file
+        for (int j = 0; j < keys.limit(); j++) {
+            long k = keys.get(j);
+            int x = CellEntry.keyX(k), y = CellEntry.keyY(k), t = templateIds.get(j), d = textIds.get(j);
+            if (!isIn(x, y)) {
+                continue;
+            }
+            table.put(k, types.get(j), values.get(j), d < 0 ? null : dictionary[d], t < 0 ? null : formulas[t]);
+            if (t < 0) {
+                continue;
+            }
+            nodes.add(k);
+            if (computed != null) {
+                rows.put(k, j);
+            }
+            if (formulas[t].fitsIn(x, y, width, height)) { // Else an error which depends on no cell
+                long[] precedents = new long[refs[t].length];
+                for (int m = 0; m < precedents.length; m++) {
+                    precedents[m] = CellEntry.key(x + CellEntry.keyX(refs[t][m]), y + CellEntry.keyY(refs[t][m]));
+                }
+                CellRange[] rs = new CellRange[ranges[t].length];
+                for (int m = 0; m < rs.length; m++) {
+                    rs[m] = ranges[t][m].shift(x, y);
+                }
+                graph.add(k, precedents, rs);
+                all.addAll(Arrays.asList(rs));
+            }
+        }
+        if (computed == null) {
+            link(nodes, all);
+            return;
+        }
+        for (CellRange rg : all) {
+            nodes.add(graph.rangeNode(rg));
+        }
+        long[] ordered = graph.ordered(nodes);
+        long[] hashes = hashes(ordered);
+        for (long d : ordered) { // Each cell after the ones it refers to
+            int i = DependencyGraph.isRange(d) ? -1 : table.find(d);
+            int j = i < 0 ? -1 : rows.get(d);
+            if (j >= 0 && hashes[i] != 0 && hashes[i] == saved.get(j) && orders.get(j) != Ex2Utils.ERR) {
+                table.setType(i, states.get(j)); // Up to date: as saved
+                table.setValue(i, computed.get(j));
+                table.setOrder(i, orders.get(j));
+            } else {
+                updateOrder(d);
+                if (i >= 0) {
+                    dirty.add(d);
+                }
+            }
+            if (i < 0) { // A range node waits for the formulas within it which are evaluated again (see evalDataflow)
+                for (long p : graph.precedentsOf(d)) {
+                    if (dirty.contains(p)) {
+                        dirty.add(d);
+                        break;
                     }
                 }
             }
-            depth++;
+        }
+        for (CellRange rg : all) {
+            indexColumns(rg); // With the values of the formulas in place
+        }
+    }
+
+    /**
+     * Computes a hash of the content of every cell and of everything it depends on (a Merkle tree over
+     * the dependency graph): a formula's hash mixes its own text with the hashes of the cells it refers to,
+     * and with the hash of each range, which sums the hashes of the cells within it.
+     * Two sheets built from the same content give the same hashes, whatever the order of the edits,
+     * apart from the cells of cycles.
+     *
+     * @param ordered The formula cells and range nodes in topological order.
+     * @return The hash of each cell, by slot.
+     */
+    private long[] hashes(long[] ordered) {
+        long[] ans = new long[table.capacity()];
+        HashMap<Long, Long> ranges = new HashMap<>(); // The sum of the hashes of the cells of each range node
+        for (long k : table.keys()) { // Numbers and text depend on nothing
+            int i = table.find(k);
+            if (table.formula(i) == null) {
+                ans[i] = content(i);
+                spread(k, ans[i], ranges);
+            }
+        }
+        for (long d : ordered) {
+            if (DependencyGraph.isRange(d)) {
+                continue; // Complete: every formula within the range comes before it
+            }
+            int i = table.find(d);
+            long h = content(i);
+            for (long p : graph.precedentsOf(d)) { // In no particular order, so the hashes are summed
+                int pi = DependencyGraph.isRange(p) ? -1 : table.find(p);
+                h += mix(DependencyGraph.isRange(p) ? ranges.getOrDefault(p, 0L) : pi < 0 ? 0 : ans[pi]);
+            }
+            ans[i] = h;
+            spread(d, h, ranges);
         }
         return ans;
     }
 
-    @Override
-    public void save(String fileName) throws IOException {
+    // Adds the hash of a cell to the ranges which contain it
+    private void spread(long k, long h, HashMap<Long, Long> ranges) {
+        for (long r : graph.dependentsOf(k)) {
+            if (DependencyGraph.isRange(r)) {
+                ranges.merge(r, mix(h), Long::sum);
+            }
+        }
+    }
 
+    // The hash of the content of the cell at a slot, and of its position
+    private long content(int i) {
+        long h;
+        if (table.formula(i) == null && table.type(i) == Ex2Utils.NUMBER) {
+            h = Double.doubleToLongBits(table.value(i));
+        } else {
+            String s = table.text(i);
+            h = 0xCBF29CE484222325L;
+            for (int c = 0; c < s.length(); c++) {
+                h = (h ^ s.charAt(c)) * 0x100000001B3L; // FNV-1a
+            }
+        }
+        return mix(h ^ mix(table.key(i)));
     }
 
-    @Override
-    public void load(String fileName) throws IOException {
+    // Scrambles the bits of a hash (the finalizer of SplitMix64)
+    private static long mix(long h) {
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        return h ^ (h >>> 31);
+    }
 
+    /**
+     * @param fileName The name of a file.
+     * @return True if the file starts with the MAGIC of a binary sheet file (see saveBinary).
+     * @throws IOException If the file cannot be read.
+     */
+    static boolean isBinary(String fileName) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(Paths.get(fileName)))) {
+            return in.readInt() == MAGIC;
+        } catch (EOFException e) {
+            return false; // Shorter than the MAGIC
+        }
     }
 }
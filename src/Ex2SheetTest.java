@@ -1,6 +1,14 @@
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
 public class Ex2SheetTest {
 
     @Test
@@ -96,4 +104,640 @@ public class Ex2SheetTest {
         assertEquals(0, depth[2][2]);
         assertTrue(depth[0][0] > 0); // Formula cell
     }
+
+    @Test
+    public void testIncrementalRecalculation() {
+        Ex2Sheet sheet = new Ex2Sheet(3, 3);
+        sheet.set(0, 0, "1");
+        sheet.set(0, 1, "=A0+1");
+        sheet.set(0, 2, "=A1*2");
+        sheet.set(1, 0, "=3*3");
+        sheet.eval();
+        assertEquals("4.0", sheet.value(0, 2));
+
+        // Only A0 and the cells depending on it are recomputed
+        sheet.set(0, 0, "5");
+        sheet.eval();
+        assertEquals("6.0", sheet.value(0, 1));
+        assertEquals("12.0", sheet.value(0, 2));
+        assertEquals("9.0", sheet.value(1, 0));
+
+        // Breaking a cycle recomputes its members
+        sheet.set(0, 0, "=A2");
+        sheet.eval();
+        assertEquals("ERR_CYCLE", sheet.value(0, 1));
+        sheet.set(0, 0, "2");
+        sheet.eval();
+        assertEquals("6.0", sheet.value(0, 2));
+    }
+
+    @Test
+    public void testDepthOfChainAndCycles() {
+        Ex2Sheet sheet = new Ex2Sheet(3, 100);
+        sheet.set(0, 0, "1");
+        for (int y = 1; y < 100; y++) {
+            sheet.set(0, y, "=A" + (y - 1) + "+1"); // A long chain A0 <- A1 <- ... <- A99
+        }
+        sheet.set(1, 0, "=B1");
+        sheet.set(1, 1, "=B0+1"); // B0 and B1 form a cycle
+        sheet.set(1, 2, "=B1"); // B2 only depends on the cycle
+        sheet.set(2, 0, "=C0"); // A cell referring to itself
+        int[][] depth = sheet.depth();
+
+        assertEquals(99, depth[0][99]);
+        assertEquals(-1, depth[1][0]);
+        assertEquals(-1, depth[1][2]);
+        assertEquals(-1, depth[2][0]);
+
+        List<List<String>> cycles = sheet.cycles();
+        assertEquals(2, cycles.size());
+        for (List<String> cycle : cycles) {
+            if (cycle.size() == 2) {
+                assertTrue(cycle.containsAll(List.of("B0", "B1")));
+            } else {
+                assertEquals(List.of("C0"), cycle);
+            }
+        }
+    }
+
+    @Test
+    public void testDepthMaintainedBySet() {
+        Ex2Sheet sheet = new Ex2Sheet(3, 3);
+        sheet.set(0, 0, "=A1+1");
+        sheet.set(0, 1, "=A2+1");
+        assertEquals(2, sheet.depth()[0][0]); // Known right after set, without eval()
+
+        sheet.set(0, 2, "=A0"); // Closes the cycle A0 -> A1 -> A2 -> A0
+        assertEquals(-1, sheet.depth()[0][0]);
+        assertEquals(-1, sheet.depth()[0][2]);
+
+        sheet.set(0, 2, "7"); // Breaks it again
+        int[][] depth = sheet.depth();
+        assertEquals(0, depth[0][2]);
+        assertEquals(1, depth[0][1]);
+        assertEquals(2, depth[0][0]);
+        sheet.eval();
+        assertEquals("9.0", sheet.value(0, 0));
+    }
+
+    @Test
+    public void testParallelEvaluation() {
+        Ex2Sheet serial = new Ex2Sheet(26, 100);
+        Ex2Sheet parallel = new Ex2Sheet(26, 100);
+        Ex2Sheet dataflow = new Ex2Sheet(26, 100);
+        ForkJoinPool levels = new ForkJoinPool(4), cells = new ForkJoinPool(4);
+        parallel.setParallelism(levels);
+        dataflow.setParallelism(cells, Ex2Sheet.DATAFLOW);
+        try {
+            for (Ex2Sheet sheet : List.of(serial, parallel, dataflow)) {
+                for (int y = 0; y < 100; y++) {
+                    sheet.set(0, y, "" + y);
+                    for (int x = 1; x < 26; x++) { // Wide levels: every column only refers to the previous one
+                        sheet.set(x, y, "=" + new CellEntry(x - 1, y) + "*2+" + new CellEntry(0, (y + 1) % 100));
+                    }
+                }
+                sheet.eval();
+            }
+        } finally {
+            levels.shutdown();
+            cells.shutdown();
+        }
+        for (int x = 0; x < 26; x++) {
+            for (int y = 0; y < 100; y++) {
+                assertEquals(serial.value(x, y), parallel.value(x, y));
+                assertEquals(serial.value(x, y), dataflow.value(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void testSparseStorage() {
+        Ex2Sheet sheet = new Ex2Sheet(16384, 1048577); // Only the populated cells are allocated
+        sheet.set(16383, 1048576, "3");
+        sheet.set(0, 0, "=2*2");
+        sheet.eval();
+        assertEquals("3.0", sheet.value(16383, 1048576));
+        assertEquals("4.0", sheet.value(0, 0));
+
+        // Empty coordinates share one immutable cell
+        assertSame(SCell.EMPTY, sheet.get(5000, 5000));
+        assertSame(sheet.get(1, 1), sheet.get(2, 2));
+        assertThrows(UnsupportedOperationException.class, () -> sheet.get(1, 1).setData("x"));
+
+        sheet.set(0, 0, ""); // Clearing a cell releases it
+        assertSame(SCell.EMPTY, sheet.get(0, 0));
+        assertEquals("", sheet.value(0, 0));
+    }
+
+    @Test
+    public void testLargeAddresses() {
+        Ex2Sheet sheet = new Ex2Sheet(16384, 1048577);
+        sheet.set(27, 12345, "2"); // AB12345
+        sheet.set(16383, 1048576, "=AB12345*3"); // XFD1048576
+        sheet.set(0, 0, "=XFE1"); // Beyond the last column of this sheet
+        sheet.eval();
+        assertEquals("6.0", sheet.value(16383, 1048576));
+        assertEquals("ERR_FORM", sheet.value(0, 0));
+        assertSame(sheet.get(27, 12345), sheet.get("ab12345"));
+
+        Ex2Sheet tall = new Ex2Sheet(2, Integer.MAX_VALUE); // The index of a column spans 2^31 rows
+        tall.set(0, 5, "1");
+        tall.set(0, Integer.MAX_VALUE - 1, "2");
+        tall.set(1, 0, "=SUM(A0:A" + (Integer.MAX_VALUE - 1) + ")");
+        tall.eval();
+        assertEquals("3.0", tall.value(1, 0));
+        tall.set(0, 1 << 30, "4");
+        tall.eval();
+        assertEquals("7.0", tall.value(1, 0));
+    }
+
+    @Test
+    public void testRangeAggregates() {
+        Ex2Sheet sheet = new Ex2Sheet(3, 10);
+        for (int y = 0; y < 4; y++) {
+            sheet.set(0, y, "" + (y + 1)); // A0..A3 = 1..4
+        }
+        sheet.set(0, 4, "text"); // Ignored by the aggregates
+        sheet.set(0, 5, "=A0*10");
+        sheet.set(1, 0, "=SUM(A0:A9)");
+        sheet.set(1, 1, "=average(A0:A3)");
+        sheet.set(1, 2, "=MIN(A3:A0)+MAX(A0:A9, 100)");
+        sheet.set(1, 3, "=COUNT(A0:A9)");
+        sheet.eval();
+        assertEquals("20.0", sheet.value(1, 0));
+        assertEquals("2.5", sheet.value(1, 1));
+        assertEquals("101.0", sheet.value(1, 2));
+        assertEquals("5.0", sheet.value(1, 3));
+        assertEquals(2, sheet.depth()[1][0]); // After A5, the deepest formula within the range
+
+        // A change within a range recomputes its formulas
+        sheet.set(0, 6, "6");
+        sheet.eval();
+        assertEquals("26.0", sheet.value(1, 0));
+
+        // An error within a range is an error of the aggregate, a formula within its own range is a cycle
+        sheet.set(0, 7, "=C9");
+        sheet.set(2, 9, "=SUM(C0:C9)");
+        sheet.eval();
+        assertEquals("ERR_CYCLE", sheet.value(2, 9));
+        assertEquals(List.of(List.of("C9")), sheet.cycles());
+        sheet.set(2, 9, "=1/A4");
+        sheet.eval();
+        assertEquals("ERR_FORM", sheet.value(1, 0));
+        assertEquals("6.0", sheet.value(1, 3)); // COUNT skips errors
+        sheet.set(0, 0, "=SUM(A0:A99)"); // Beyond the sheet
+        assertEquals(0, sheet.depth()[0][0]);
+    }
+
+    @Test
+    public void testRangeIndex() {
+        Ex2Sheet sheet = new Ex2Sheet(2, 100000);
+        sheet.set(1, 0, "=SUM(A0:A9)"); // Indexes the first rows of column A
+        for (int y = 0; y < 100000; y++) {
+            sheet.set(0, y, "" + y);
+        }
+        sheet.set(1, 1, "=MAX(A0:A99999)"); // Grows the index of column A
+        sheet.set(1, 2, "=SUM(A0:A99999)");
+        sheet.eval();
+        assertEquals("45.0", sheet.value(1, 0));
+        assertEquals("99999.0", sheet.value(1, 1));
+        assertEquals("4.99995E9", sheet.value(1, 2));
+
+        sheet.set(0, 99999, "-1"); // A point update of the index
+        sheet.set(0, 5, "five");
+        sheet.eval();
+        assertEquals("40.0", sheet.value(1, 0));
+        assertEquals("99998.0", sheet.value(1, 1));
+        assertEquals("4.999849995E9", sheet.value(1, 2));
+    }
+
+    @Test
+    public void testManyRanges() {
+        Ex2Sheet sheet = new Ex2Sheet(2, 1000);
+        for (int y = 0; y < 1000; y++) {
+            sheet.set(0, y, "1");
+        }
+        for (int y = 0; y < 990; y++) {
+            sheet.set(1, y, "=SUM(A" + y + ":A" + (y + 9) + ")"); // Overlapping windows of 10 rows
+        }
+        sheet.eval();
+        assertEquals("10.0", sheet.value(1, 0));
+
+        sheet.set(0, 500, "2"); // Only the 10 windows containing A500 change
+        sheet.eval();
+        for (int y = 0; y < 990; y++) {
+            assertEquals(y > 490 && y <= 500 ? "11.0" : "10.0", sheet.value(1, y));
+        }
+        for (int y = 0; y < 990; y += 2) {
+            sheet.set(1, y, ""); // Dropping half of the windows
+        }
+        sheet.set(0, 501, "3");
+        sheet.eval();
+        assertEquals("12.0", sheet.value(1, 501));
+        assertEquals("13.0", sheet.value(1, 499));
+    }
+
+    @Test
+    public void testFunctions() {
+        Ex2Sheet sheet = new Ex2Sheet(3, 3);
+        sheet.set(0, 0, "3");
+        sheet.set(0, 1, "=if(A0>2, pow(A0, 2), 0)");
+        sheet.set(0, 2, "=(A0==3) + (A0!=3) * 10 + sin(0) + cos(0)");
+        sheet.set(1, 0, "=max(A0, A1, 4) - min(A0:A2)");
+        sheet.set(1, 1, "=if(B2, 1, 2)"); // An empty condition is an error
+        sheet.eval();
+        assertEquals("9.0", sheet.value(0, 1));
+        assertEquals("2.0", sheet.value(0, 2));
+        assertEquals("7.0", sheet.value(1, 0));
+        assertEquals("ERR_FORM", sheet.value(1, 1));
+
+        sheet.set(0, 0, "1");
+        sheet.eval();
+        assertEquals("0.0", sheet.value(0, 1));
+        assertEquals("11.0", sheet.value(0, 2));
+    }
+
+    @Test
+    public void testShortCircuitIf() {
+        Ex2Sheet sheet = new Ex2Sheet(3, 3);
+        sheet.set(0, 0, "1");
+        sheet.set(0, 1, "5");
+        sheet.set(0, 2, "7");
+        sheet.set(1, 0, "=if(A0>0, A1, A2 + SUM(C0:C2))");
+        sheet.set(1, 1, "=B0*2");
+        sheet.eval();
+        assertEquals("5.0", sheet.value(1, 0));
+        assertEquals("10.0", sheet.value(1, 1));
+
+        String taken = sheet.value(1, 0), dependent = sheet.value(1, 1);
+        sheet.set(0, 2, "8"); // The branch which is not taken: nothing is recomputed
+        sheet.set(2, 1, "100");
+        sheet.eval();
+        assertSame(taken, sheet.value(1, 0));
+        assertSame(dependent, sheet.value(1, 1));
+
+        sheet.set(0, 0, "0"); // The other branch, with the values it missed
+        sheet.eval();
+        assertEquals("108.0", sheet.value(1, 0));
+        assertEquals("216.0", sheet.value(1, 1));
+
+        sheet.set(0, 1, "6"); // Now A1 is not read
+        sheet.set(2, 2, "1");
+        sheet.eval();
+        assertEquals("109.0", sheet.value(1, 0));
+        sheet.set(0, 0, "1");
+        sheet.eval();
+        assertEquals("6.0", sheet.value(1, 0));
+        assertEquals("12.0", sheet.value(1, 1));
+    }
+
+    @Test
+    public void testFilledDownFormulas() {
+        Ex2Sheet sheet = new Ex2Sheet(3, 1000);
+        for (int y = 0; y < 1000; y++) {
+            sheet.set(0, y, "" + y);
+            sheet.set(1, y, "2");
+            sheet.set(2, y, "=A" + y + "*B" + y + (y > 0 ? "+C" + (y - 1) : ""));
+        }
+        sheet.eval();
+        assertEquals("999000.0", sheet.value(2, 999)); // 2 * (0 + 1 + ... + 999)
+
+        sheet.set(1, 500, "3");
+        sheet.eval();
+        assertEquals("999500.0", sheet.value(2, 999));
+    }
+
+    @Test
+    public void testColumnEvaluation() {
+        Ex2Sheet serial = new Ex2Sheet(4, 5000), parallel = new Ex2Sheet(4, 5000);
+        parallel.setParallelism(ForkJoinPool.commonPool());
+        for (Ex2Sheet sheet : List.of(serial, parallel)) {
+            for (int y = 0; y < 5000; y++) {
+                sheet.set(0, y, "" + y);
+                sheet.set(1, y, y == 100 ? "txt" : "2");
+                sheet.set(2, y, "=A" + y + "*B" + y + "+1"); // Evaluated a block of rows at a time
+                sheet.set(3, y, "=C" + y + "/A" + y + "-if(A" + y + ">1, 1, 0)");
+            }
+            sheet.eval();
+        }
+        for (int y = 0; y < 5000; y += 7) {
+            assertEquals(y == 100 ? "ERR_FORM" : "" + (2.0 * y + 1), serial.value(2, y));
+            assertEquals(serial.value(3, y), parallel.value(3, y));
+        }
+        assertEquals("Infinity", serial.value(3, 0));
+        assertEquals("1.5", serial.value(3, 2));
+
+        serial.set(1, 100, "3");
+        serial.eval();
+        assertEquals("301.0", serial.value(2, 100));
+        assertEquals("2.01", serial.value(3, 100));
+
+        if (Formula.VECTOR) { // Same results as the scalar loops, including the rows which do not fill a vector
+            for (char op : new char[]{'+', '-', '*', '/'}) {
+                double[] a = new double[37], b = new double[37];
+                for (int i = 0; i < 37; i++) {
+                    a[i] = i % 5 == 0 ? Double.NaN : i * 1.5;
+                    b[i] = i % 3;
+                }
+                double[] c = a.clone();
+                VectorOps.apply(op, c, b, 37);
+                for (int i = 0; i < 37; i++) {
+                    assertEquals(Formula.Op.apply(op, a[i], b[i]), c[i]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCellViews() {
+        Ex2Sheet sheet = new Ex2Sheet(3, 3);
+        sheet.set(0, 0, "2");
+        sheet.set(0, 1, "=A0*3");
+        sheet.eval();
+        Cell view = sheet.get(0, 1); // A view of the cell in the table
+        assertEquals("=A0*3", view.getData());
+        assertEquals(Ex2Utils.FORM, view.getType());
+        assertEquals(1, view.getOrder());
+
+        sheet.get(0, 0).setData("5"); // Sets the cell of the sheet
+        sheet.eval();
+        assertEquals("15.0", sheet.value(0, 1));
+        assertEquals("5.0", sheet.get(0, 0).getData());
+
+        sheet.set(0, 1, "");
+        assertEquals("", view.getData()); // A cleared cell reads as empty
+        assertEquals(0, view.getOrder());
+    }
+
+    @Test
+    public void testOffHeapStorage() {
+        Ex2Sheet heap = new Ex2Sheet(3, 2000), offHeap = new Ex2Sheet(3, 2000, Ex2Sheet.OFF_HEAP);
+        for (Ex2Sheet sheet : List.of(heap, offHeap)) {
+            for (int y = 0; y < 2000; y++) { // Enough cells to grow the table several times
+                sheet.set(0, y, y % 10 == 0 ? "txt" : "" + y);
+                sheet.set(1, y, "=A" + y + "/2");
+            }
+            sheet.set(2, 0, "=sum(B0:B1999)");
+            for (int y = 0; y < 2000; y += 3) {
+                sheet.set(0, y, ""); // Removals move the cells of the table
+            }
+            sheet.eval();
+        }
+        for (int y = 0; y < 2000; y += 11) {
+            assertEquals(heap.value(0, y), offHeap.value(0, y));
+            assertEquals(heap.value(1, y), offHeap.value(1, y));
+            assertEquals(heap.get(1, y).getType(), offHeap.get(1, y).getType());
+        }
+        assertEquals(heap.value(2, 0), offHeap.value(2, 0));
+        assertEquals("ERR_FORM", offHeap.value(1, 10));
+    }
+
+    @Test
+    public void testSaveAndLoadFile() throws Exception {
+        Ex2Sheet sheet = new Ex2Sheet(4, 300);
+        for (int y = 0; y < 300; y++) {
+            sheet.set(0, y, "" + y);
+            sheet.set(1, y, y % 50 == 0 ? "a, b" : "=if(A" + y + ">10, A" + y + "*2, 0)");
+        }
+        sheet.set(2, 0, "=sum(B0:B299)");
+        sheet.set(2, 1, "=C2+1");
+        sheet.set(2, 2, "=C1"); // A cycle
+        String[] commas = {"=1,2", "3,4", "say \"hi\", twice", "\"quoted\"", "=if(A1>0, 1, 2)"}; // Quoted by save()
+        for (int y = 0; y < commas.length; y++) {
+            sheet.set(3, y, commas[y]);
+        }
+        sheet.eval();
+
+        Path file = Files.createTempFile("sheet", ".csv");
+        try {
+            sheet.save(file.toString());
+            assertEquals(609, Files.readAllLines(file).size()); // The header and the populated cells only
+            Ex2Sheet loaded = new Ex2Sheet(4, 300);
+            loaded.set(3, 3, "gone"); // Replaced by the content of the file
+            loaded.load(file.toString());
+            for (int x = 0; x < 4; x++) {
+                for (int y = 0; y < 300; y++) {
+                    assertNotNull(loaded.value(x, y)); // Shown as empty until evaluated
+                }
+            }
+            loaded.eval();
+            for (int x = 0; x < 4; x++) {
+                for (int y = 0; y < 300; y++) {
+                    assertEquals(sheet.value(x, y), loaded.value(x, y));
+                }
+            }
+            assertArrayEquals(sheet.depth()[2], loaded.depth()[2]);
+            for (int y = 0; y < commas.length; y++) {
+                assertEquals(commas[y], loaded.get(3, y).getData());
+            }
+
+            Files.write(file, List.of("header, ignored", "0,0,=if(1>0, 2, 3),remark, with commas",
+                    "0,1,7,remark", "0,2,text, with a comma", "9,9,outside", "x,1,malformed"));
+            loaded.load(file.toString());
+            loaded.eval();
+            assertEquals("2.0", loaded.value(0, 0));
+            assertEquals("7.0", loaded.value(0, 1));
+            assertEquals("text, with a comma", loaded.value(0, 2));
+            assertEquals("", loaded.value(1, 1));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testBinaryFile() throws Exception {
+        Ex2Sheet sheet = new Ex2Sheet(4, 300);
+        for (int y = 0; y < 300; y++) {
+            sheet.set(0, y, y % 50 == 0 ? "txt" : "" + y);
+            sheet.set(1, y, "=if(A" + y + ">10, A" + y + "*2, 0)"); // A single template
+        }
+        sheet.set(2, 0, "=sum(B0:B299)");
+        sheet.set(2, 1, "=C2+1");
+        sheet.set(2, 2, "=C1"); // A cycle
+        sheet.set(3, 0, "=D5+"); // A wrong format
+        sheet.set(3, 299, "=D300"); // Outside the sheet
+        sheet.eval();
+
+        Path file = Files.createTempFile("sheet", ".bin");
+        try {
+            sheet.saveBinary(file.toString());
+            Ex2Sheet loaded = new Ex2Sheet(4, 300);
+            loaded.load(file.toString()); // Recognized as a binary file
+            loaded.eval();
+            for (int x = 0; x < 4; x++) {
+                for (int y = 0; y < 300; y++) {
+                    assertEquals(sheet.value(x, y), loaded.value(x, y));
+                    assertEquals(sheet.get(x, y).getData(), loaded.get(x, y).getData());
+                }
+            }
+            assertArrayEquals(sheet.depth()[2], loaded.depth()[2]);
+
+            loaded.set(0, 20, "5"); // The loaded formulas depend on their cells
+            loaded.eval();
+            assertEquals("0.0", loaded.value(1, 20));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testSavedValues() throws Exception {
+        Ex2Sheet sheet = new Ex2Sheet(4, 100);
+        for (int y = 0; y < 100; y++) {
+            sheet.set(0, y, "" + y);
+            sheet.set(1, y, "=A" + y + "*2");
+            sheet.set(2, y, "=B" + y + "+1");
+        }
+        sheet.set(3, 0, "=sum(C0:C99)");
+        sheet.set(3, 1, "=D2");
+        sheet.set(3, 2, "=D1"); // A cycle
+        sheet.eval();
+        sheet.set(0, 5, "1000"); // Not evaluated yet when saved
+
+        Path file = Files.createTempFile("sheet", ".bin");
+        try {
+            sheet.saveBinary(file.toString());
+            Ex2Sheet loaded = new Ex2Sheet(4, 100);
+            loaded.load(file.toString());
+            assertEquals("9.0", loaded.value(2, 4)); // Shown without an evaluation
+            assertEquals(2, loaded.get(2, 4).getOrder());
+            assertEquals("", loaded.value(2, 5)); // Saved out of date: empty until eval()
+            assertEquals("", loaded.value(3, 0));
+
+            sheet.eval();
+            loaded.eval();
+            for (int x = 0; x < 4; x++) {
+                for (int y = 0; y < 100; y++) {
+                    assertEquals(sheet.value(x, y), loaded.value(x, y));
+                }
+            }
+            assertEquals("ERR_CYCLE", loaded.value(3, 1));
+
+            sheet.set(0, 7, "-1"); // Saved out of date, within the range of D0
+            sheet.saveBinary(file.toString());
+            sheet.eval();
+            ForkJoinPool pool = new ForkJoinPool(4);
+            try {
+                Ex2Sheet dataflow = new Ex2Sheet(4, 100);
+                dataflow.setParallelism(pool, Ex2Sheet.DATAFLOW);
+                dataflow.load(file.toString());
+                dataflow.eval(); // D0 waits for C7 through the node of its range
+                assertEquals(sheet.value(3, 0), dataflow.value(3, 0));
+            } finally {
+                pool.shutdown();
+            }
+
+            sheet.saveBinary(file.toString(), false); // Without the values
+            loaded.load(file.toString());
+            assertEquals("", loaded.value(2, 4));
+            loaded.eval();
+            assertEquals("9.0", loaded.value(2, 4));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testJournal() throws Exception {
+        Path dir = Files.createTempDirectory("journal");
+        String file = dir.resolve("sheet.csv").toString();
+        try {
+            Ex2Sheet sheet = new Ex2Sheet(3, 50);
+            sheet.openJournal(file); // Creates the (empty) file
+            sheet.set(0, 0, "1");
+            sheet.set(1, 0, "=A0*2");
+            sheet.set(0, 0, "3");
+            sheet.set(2, 0, "x, y");
+            sheet.set(2, 0, ""); // Cleared
+            sheet.closeJournal(); // The file itself was never saved
+            Files.write(Path.of(file + ".journal"), "1,1,torn".getBytes(), StandardOpenOption.APPEND);
+
+            Ex2Sheet loaded = new Ex2Sheet(3, 50);
+            loaded.load(file); // The file, then its journal
+            loaded.eval();
+            assertEquals("6.0", loaded.value(1, 0));
+            assertEquals("", loaded.value(2, 0));
+            assertEquals("", loaded.value(1, 1)); // Not a complete record
+
+            loaded.openJournal(file, 64); // Compacted beyond 64 bytes
+            for (int y = 1; y < 50; y++) {
+                loaded.set(0, y, "" + y);
+                loaded.set(1, y, "=A" + y + "*2");
+            }
+            loaded.closeJournal(); // Waits for the compaction in progress
+            assertTrue(Files.size(Path.of(file + ".journal")) < 1000);
+            assertFalse(Files.exists(Path.of(file + ".journal.old")));
+
+            Ex2Sheet again = new Ex2Sheet(3, 50);
+            again.load(file);
+            again.eval();
+            loaded.eval();
+            for (int y = 0; y < 50; y++) {
+                assertEquals(loaded.value(1, y), again.value(1, y));
+            }
+        } finally {
+            try (var files = Files.list(dir)) {
+                for (Path f : (Iterable<Path>) files::iterator) {
+                    Files.delete(f);
+                }
+            }
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testJournalFailedCompaction() throws Exception {
+        Path dir = Files.createTempDirectory("journal");
+        String file = dir.resolve("sheet.csv").toString();
+        Path blocker = Path.of(file + ".tmp"), old = Path.of(file + ".journal.old");
+        try {
+            Ex2Sheet sheet = new Ex2Sheet(1, 200);
+            sheet.openJournal(file, 64);
+            Files.createDirectory(blocker); // The compacted file cannot be written: every compaction fails
+            int failures = 0;
+            for (int y = 0; y < 200; y++) {
+                while (true) {
+                    try {
+                        sheet.set(0, y, "" + y);
+                        break;
+                    } catch (UncheckedIOException e) { // The failure of a compaction, thrown once
+                        failures++;
+                    }
+                }
+                Thread.sleep(1); // Lets the compactions fail while the journal keeps growing
+            }
+            assertTrue(failures > 0);
+            assertTrue(Files.exists(old)); // Not overwritten by a new rotation
+            Files.delete(blocker);
+            try {
+                sheet.closeJournal();
+            } catch (IOException e) {
+                // A compaction which failed before the directory was removed
+            }
+
+            Ex2Sheet loaded = new Ex2Sheet(1, 200);
+            loaded.load(file); // The file, the old journal, then the current one
+            for (int y = 0; y < 200; y++) {
+                assertEquals(sheet.value(0, y), loaded.value(0, y));
+            }
+            loaded.openJournal(file); // Completes the compaction
+            loaded.closeJournal();
+            assertFalse(Files.exists(old));
+        } finally {
+            try (var files = Files.list(dir)) {
+                for (Path f : (Iterable<Path>) files::iterator) {
+                    Files.delete(f);
+                }
+            }
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testSetOutsideSheet() {
+        Ex2Sheet sheet = new Ex2Sheet(3, 3);
+        assertThrows(IndexOutOfBoundsException.class, () -> sheet.set(3, 0, "1"));
+        assertThrows(IndexOutOfBoundsException.class, () -> sheet.set(0, -1, "1"));
+        assertEquals(3, sheet.depth().length); // Nothing was stored
+    }
 }
@@ -0,0 +1,841 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Represents a compiled formula: the expression tree (literals, cell references, operators, comparisons,
+ * functions and aggregate functions over ranges) built once from the text of a formula cell.
+ *
+ * SCell compiles its formula when its data is set, and every recalculation walks the tree
+ * instead of parsing the formula string again. Sub-expressions of literals only are folded into
+ * a single literal while compiling, e.g., "pow(2,10)*A1" is evaluated as "1024*A1".
+ *
+ * References are relative to the cell the formula belongs to (its anchor), so the formulas filled down
+ * a column, e.g., "A1*B1", "A2*B2", ..., share a single tree (see compile(CharSequence, int, int, int)),
+ * and every method taking a cell's coordinates resolves the references from that cell.
+ */
+public abstract class Formula {
+    // Functions, by their index in NAMES: aggregates (up to COUNT), then the other functions
+    static final int SUM = 0, AVERAGE = 1, MIN = 2, MAX = 3, COUNT = 4, IF = 5, SIN = 6, COS = 7, POW = 8;
+    static final String[] NAMES = {"SUM", "AVERAGE", "MIN", "MAX", "COUNT", "IF", "SIN", "COS", "POW"};
+    // Comparisons, by their index in COMPARISONS
+    static final int LT = 0, GT = 1, EQ = 2, NE = 3, LE = 4, GE = 5;
+    static final String[] COMPARISONS = {"<", ">", "==", "!=", "<=", ">="};
+    private static final int[] ARITY = {0, 0, 0, 0, 0, 3, 1, 1, 2}; // Arguments of each function (0: any)
+    private static final CellRange[] NO_RANGES = new CellRange[0];
+    private static final int MAX_TEMPLATES = 1 << 16; // Compiled templates kept at most (then forgotten)
+    private static final ConcurrentHashMap<String, Formula> TEMPLATES =
+            new ConcurrentHashMap<>(); // Template (see Lexer.template) -> its tree
+    // Whether the Vector API was added, by "--add-modules jdk.incubator.vector" (see VectorOps)
+    static final boolean VECTOR = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+    private volatile int[] reach; // Lowest and highest column and row offsets of the references (see fitsIn)
+
+    /**
+     * Evaluates this expression, recording the cells and ranges it actually reads:
+     * the branch an IF does not take is not evaluated, so its references are not read.
+     *
+     * @param sheet The spreadsheet used to resolve cell references.
+     * @param x     Column index of the cell the formula belongs to.
+     * @param y     Row index of the cell the formula belongs to.
+     * @param reads Collects what is read, or null.
+     * @return The numeric value, or NaN if a referenced cell does not hold a number.
+     */
+    public abstract double eval(Ex2Sheet sheet, int x, int y, Reads reads);
+
+    /**
+     * Evaluates this expression for consecutive cells of a column, which share it (see compile):
+     * literals, references and arithmetic operators are evaluated a whole column at a time,
+     * and the other expressions cell by cell. The referenced cells are gathered into contiguous arrays
+     * (one lookup in the table of the sheet per cell, see Ex2Sheet.numbersAt), and the operators are applied
+     * to them with the Vector API when it is available (see VectorOps), or else by scalar loops.
+     *
+     * @param sheet The spreadsheet used to resolve cell references.
+     * @param x     Column index of the cells.
+     * @param y     Row index of the first cell.
+     * @param n     The number of cells.
+     * @return The value for each cell (a new array, which the caller may overwrite).
+     */
+    double[] evalColumn(Ex2Sheet sheet, int x, int y, int n) {
+        double[] ans = new double[n];
+        for (int i = 0; i < n; i++) { // Scalar fallback
+            ans[i] = eval(sheet, x, y + i, null);
+        }
+        return ans;
+    }
+
+    /**
+     * Checks whether some references of this expression may not be read by an evaluation (see Reads).
+     *
+     * @return True if this expression contains an IF.
+     */
+    boolean hasBranches() {
+        return false;
+    }
+
+    /**
+     * Returns the distinct cells this expression refers to from a given cell, in order of appearance.
+     *
+     * @param x Column index of the cell the formula belongs to.
+     * @param y Row index of the cell the formula belongs to.
+     * @return The packed keys of the referenced cells (see CellEntry.key).
+     */
+    public long[] references(int x, int y) {
+        long[] ans = new long[4];
+        int n = collect(ans, 0, x, y);
+        if (n > ans.length) { // Did not fit: collect again into an array of the right size
+            ans = new long[n];
+            n = collect(ans, 0, x, y);
+        }
+        return Arrays.copyOf(ans, n);
+    }
+
+    /**
+     * Adds the (new) references of this expression to an array.
+     *
+     * @param into The array, references beyond its length are only counted.
+     * @param n    The number of references already in the array.
+     * @param x    Column index of the cell the formula belongs to.
+     * @param y    Row index of the cell the formula belongs to.
+     * @return The number of references after this expression.
+     */
+    int collect(long[] into, int n, int x, int y) {
+        return n; // Literals refer to nothing
+    }
+
+    /**
+     * Returns the distinct ranges this expression refers to from a given cell (each one is a single dependency).
+     *
+     * @param x Column index of the cell the formula belongs to.
+     * @param y Row index of the cell the formula belongs to.
+     * @return The ranges, in order of appearance.
+     */
+    public CellRange[] ranges(int x, int y) {
+        ArrayList<CellRange> ans = new ArrayList<>();
+        collectRanges(ans, x, y);
+        return ans.isEmpty() ? NO_RANGES : ans.toArray(NO_RANGES);
+    }
+
+    /**
+     * Adds the (new) ranges of this expression to a list.
+     *
+     * @param into The list.
+     * @param x    Column index of the cell the formula belongs to.
+     * @param y    Row index of the cell the formula belongs to.
+     */
+    void collectRanges(ArrayList<CellRange> into, int x, int y) {
+        // Literals and single references have no ranges
+    }
+
+    /**
+     * Checks whether all the cells this expression refers to, from a given cell, lie within a sheet.
+     * The offsets the references reach are found once per tree, so this is O(1) for every cell of a template.
+     *
+     * @param x      Column index of the cell the formula belongs to.
+     * @param y      Row index of the cell the formula belongs to.
+     * @param width  The number of columns of the sheet.
+     * @param height The number of rows of the sheet.
+     * @return False if some reference (or range) is out of bounds.
+     */
+    public boolean fitsIn(int x, int y, int width, int height) {
+        int[] r = reach;
+        if (r == null) {
+            r = new int[]{Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE};
+            reach(r);
+            reach = r; // Shared by the cells of the template, published filled (volatile): a race only computes it twice
+        }
+        return r[2] == Integer.MIN_VALUE // No references
+                || ((long) x + r[0] >= 0 && (long) y + r[1] >= 0 && (long) x + r[2] < width && (long) y + r[3] < height);
+    }
+
+    /**
+     * Widens the offsets reached by the references of this expression.
+     *
+     * @param r The lowest column and row offsets, then the highest ones.
+     */
+    void reach(int[] r) {
+        // Literals refer to nothing
+    }
+
+    /**
+     * Checks whether this expression can be folded into a literal, i.e., all its operands are literals
+     * (sub-expressions are folded first, while compiling).
+     *
+     * @return True if this expression does not depend on any cell.
+     */
+    boolean isConstant() {
+        return false;
+    }
+
+    /**
+     * Compiles a formula (without the leading '=') into an expression tree.
+     *
+     * @param s The formula text, e.g., "A1*(3-A2)". Spaces between tokens are ignored.
+     * @return The root of the expression tree, or null if the formula is not valid.
+     */
+    public static Formula compile(String s) {
+        return s == null ? null : compile(s, 0);
+    }
+
+    /**
+     * Compiles the formula starting at a given index of a text: one pass of the Lexer,
+     * then a recursive-descent parse of its tokens.
+     *
+     * Grammar: cond := expr (cmp expr)?, expr := term (('+'|'-') term)*, term := factor (('*'|'/') factor)*,
+     * factor := number | cell | '(' cond ')' | name '(' arg (',' arg)* ')', arg := cell ':' cell | cond,
+     * where cmp is one of COMPARISONS (a comparison is 1 if true, else 0).
+     *
+     * @param s    The text, e.g., "=A1*(3-A2)".
+     * @param from The index where the formula starts (e.g., 1, after the '=').
+     * @return The root of the expression tree, or null if the formula is not valid.
+     */
+    public static Formula compile(CharSequence s, int from) {
+        return compile(s, from, 0, 0);
+    }
+
+    /**
+     * Compiles the formula of a given cell, relative to that cell. The text is only split into tokens:
+     * if a formula with the same template (see Lexer.template) was compiled before, at any cell,
+     * its tree is shared rather than parsed again, so a filled-down column compiles once.
+     *
+     * @param s    The text, e.g., "=A1*B1".
+     * @param from The index where the formula starts (e.g., 1, after the '=').
+     * @param x    Column index of the cell the formula belongs to.
+     * @param y    Row index of the cell the formula belongs to.
+     * @return The root of the (shared) expression tree, or null if the formula is not valid.
+     */
+    public static Formula compile(CharSequence s, int from, int x, int y) {
+        Lexer lexer = new Lexer(s, from, s.length());
+        if (!lexer.isValid()) {
+            return null;
+        }
+        String template = lexer.template(x, y);
+        Formula ans = TEMPLATES.get(template);
+        if (ans != null) {
+            return ans;
+        }
+        Parser p = new Parser(lexer, x, y);
+        ans = p.cond();
+        if (ans == null || p.pos != lexer.size()) { // All the tokens must be consumed
+            return null;
+        }
+        if (TEMPLATES.size() >= MAX_TEMPLATES) {
+            TEMPLATES.clear(); // Keeps the cache bounded, the templates in use are compiled again
+        }
+        Formula shared = TEMPLATES.putIfAbsent(template, ans);
+        return shared == null ? ans : shared;
+    }
+
+    /**
+     * A numeric literal, e.g., "3.5".
+     */
+    static class Num extends Formula {
+        final double value;
+
+        Num(double value) {
+            this.value = value;
+        }
+
+        @Override
+        public double eval(Ex2Sheet sheet, int x, int y, Reads reads) {
+            return value;
+        }
+
+        @Override
+        double[] evalColumn(Ex2Sheet sheet, int x, int y, int n) {
+            double[] ans = new double[n];
+            Arrays.fill(ans, value);
+            return ans;
+        }
+
+        @Override
+        boolean isConstant() {
+            return true;
+        }
+    }
+
+    /**
+     * A reference to another cell, e.g., "A1", as its offset from the cell the formula belongs to.
+     */
+    static class Ref extends Formula {
+        final int dx; // Column offset of the referenced cell
+        final int dy; // Row offset of the referenced cell
+
+        Ref(int dx, int dy) {
+            this.dx = dx;
+            this.dy = dy;
+        }
+
+        @Override
+        public double eval(Ex2Sheet sheet, int x, int y, Reads reads) {
+            if (reads != null) {
+                reads.add(CellEntry.key(x + dx, y + dy));
+            }
+            return sheet.numberAt(x + dx, y + dy);
+        }
+
+        @Override
+        double[] evalColumn(Ex2Sheet sheet, int x, int y, int n) {
+            return sheet.numbersAt(x + dx, y + dy, n);
+        }
+
+        @Override
+        void reach(int[] r) {
+            r[0] = Math.min(r[0], dx);
+            r[1] = Math.min(r[1], dy);
+            r[2] = Math.max(r[2], dx);
+            r[3] = Math.max(r[3], dy);
+        }
+
+        @Override
+        int collect(long[] into, int n, int x, int y) {
+            long key = CellEntry.key(x + dx, y + dy);
+            for (int i = 0; i < Math.min(n, into.length); i++) {
+                if (into[i] == key) {
+                    return n; // Already referred to
+                }
+            }
+            if (n < into.length) {
+                into[n] = key;
+            }
+            return n + 1;
+        }
+    }
+
+    /**
+     * A binary arithmetic operator (one of Ex2Utils.M_OPS) applied to two sub-expressions.
+     */
+    static class Op extends Formula {
+        final char op;
+        final Formula left;
+        final Formula right;
+
+        Op(char op, Formula left, Formula right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public double eval(Ex2Sheet sheet, int x, int y, Reads reads) {
+            return apply(op, left.eval(sheet, x, y, reads), right.eval(sheet, x, y, reads));
+        }
+
+        // Applies an operator to two numbers
+        static double apply(char op, double a, double b) {
+            return switch (op) {
+                case '+' -> a + b;
+                case '-' -> a - b;
+                case '*' -> a * b;
+                default -> a / b;
+            };
+        }
+
+        @Override
+        double[] evalColumn(Ex2Sheet sheet, int x, int y, int n) {
+            double[] a = left.evalColumn(sheet, x, y, n);
+            double[] b = right.evalColumn(sheet, x, y, n);
+            if (VECTOR) {
+                VectorOps.apply(op, a, b, n);
+                return a;
+            }
+            switch (op) { // Scalar fallback: one branch-free loop per operator
+                case '+' -> {
+                    for (int i = 0; i < n; i++) {
+                        a[i] += b[i];
+                    }
+                }
+                case '-' -> {
+                    for (int i = 0; i < n; i++) {
+                        a[i] -= b[i];
+                    }
+                }
+                case '*' -> {
+                    for (int i = 0; i < n; i++) {
+                        a[i] *= b[i];
+                    }
+                }
+                default -> {
+                    for (int i = 0; i < n; i++) {
+                        a[i] /= b[i];
+                    }
+                }
+            }
+            return a;
+        }
+
+        @Override
+        int collect(long[] into, int n, int x, int y) {
+            return right.collect(into, left.collect(into, n, x, y), x, y);
+        }
+
+        @Override
+        void collectRanges(ArrayList<CellRange> into, int x, int y) {
+            left.collectRanges(into, x, y);
+            right.collectRanges(into, x, y);
+        }
+
+        @Override
+        void reach(int[] r) {
+            left.reach(r);
+            right.reach(r);
+        }
+
+        @Override
+        boolean isConstant() {
+            return left instanceof Num && right instanceof Num;
+        }
+
+        @Override
+        boolean hasBranches() {
+            return left.hasBranches() || right.hasBranches();
+        }
+    }
+
+    /**
+     * A comparison (one of COMPARISONS) of two sub-expressions: 1 if it holds, else 0.
+     * Equality is up to Ex2Utils.EPS, like the rest of Ex2.
+     */
+    static class Cmp extends Formula {
+        final int op; // One of LT, GT, EQ, NE, LE, GE
+        final Formula left;
+        final Formula right;
+
+        Cmp(int op, Formula left, Formula right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public double eval(Ex2Sheet sheet, int x, int y, Reads reads) {
+            double a = left.eval(sheet, x, y, reads);
+            double b = right.eval(sheet, x, y, reads);
+            if (Double.isNaN(a) || Double.isNaN(b)) {
+                return Double.NaN; // Comparing an error is an error
+            }
+            boolean equal = Math.abs(a - b) <= Ex2Utils.EPS;
+            boolean ans = switch (op) {
+                case LT -> a < b && !equal;
+                case GT -> a > b && !equal;
+                case EQ -> equal;
+                case NE -> !equal;
+                case LE -> a < b || equal;
+                default -> a > b || equal; // GE
+            };
+            return ans ? 1 : 0;
+        }
+
+        @Override
+        int collect(long[] into, int n, int x, int y) {
+            return right.collect(into, left.collect(into, n, x, y), x, y);
+        }
+
+        @Override
+        void collectRanges(ArrayList<CellRange> into, int x, int y) {
+            left.collectRanges(into, x, y);
+            right.collectRanges(into, x, y);
+        }
+
+        @Override
+        void reach(int[] r) {
+            left.reach(r);
+            right.reach(r);
+        }
+
+        @Override
+        boolean isConstant() {
+            return left instanceof Num && right instanceof Num;
+        }
+
+        @Override
+        boolean hasBranches() {
+            return left.hasBranches() || right.hasBranches();
+        }
+    }
+
+    /**
+     * A function with a fixed number of arguments (see NAMES): IF, SIN, COS or POW
+     * (MIN and MAX are aggregates). IF only evaluates the branch it takes.
+     */
+    static class Call extends Formula {
+        final int function; // One of IF, SIN, COS, POW
+        final Formula[] args;
+
+        Call(int function, Formula[] args) {
+            this.function = function;
+            this.args = args;
+        }
+
+        @Override
+        public double eval(Ex2Sheet sheet, int x, int y, Reads reads) {
+            double a = args[0].eval(sheet, x, y, reads);
+            return switch (function) {
+                case IF -> Double.isNaN(a) ? Double.NaN
+                        : a != 0 ? args[1].eval(sheet, x, y, reads) : args[2].eval(sheet, x, y, reads);
+                case SIN -> Math.sin(a);
+                case COS -> Math.cos(a);
+                default -> Math.pow(a, args[1].eval(sheet, x, y, reads));
+            };
+        }
+
+        @Override
+        int collect(long[] into, int n, int x, int y) {
+            for (Formula f : args) {
+                n = f.collect(into, n, x, y);
+            }
+            return n;
+        }
+
+        @Override
+        void collectRanges(ArrayList<CellRange> into, int x, int y) {
+            for (Formula f : args) {
+                f.collectRanges(into, x, y);
+            }
+        }
+
+        @Override
+        void reach(int[] r) {
+            for (Formula f : args) {
+                f.reach(r);
+            }
+        }
+
+        @Override
+        boolean isConstant() {
+            for (Formula f : args) {
+                if (!(f instanceof Num)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        boolean hasBranches() {
+            if (function == IF) {
+                return true;
+            }
+            for (Formula f : args) {
+                if (f.hasBranches()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Accumulates the values aggregated by a function: numbers are added,
+     * text and empty cells are skipped, and an error makes the whole aggregate an error (as in Excel).
+     */
+    static final class Acc {
+        double sum = 0;
+        int count = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        boolean error = false; // Some value was an error
+
+        void add(double v) {
+            sum += v;
+            count++;
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+    }
+
+    /**
+     * The cells and ranges read by the last evaluation of a formula with branches (see eval).
+     * A change to a cell the formula refers to, but did not read, cannot change its value.
+     */
+    public static final class Reads {
+        private long[] cells = new long[4]; // Keys of the cells read (possibly repeated)
+        private int n = 0;
+        private CellRange[] ranges = new CellRange[2]; // Ranges read (possibly repeated)
+        private int m = 0;
+
+        void add(long key) {
+            if (n == cells.length) {
+                cells = Arrays.copyOf(cells, 2 * n);
+            }
+            cells[n++] = key;
+        }
+
+        void add(CellRange r) {
+            if (m == ranges.length) {
+                ranges = Arrays.copyOf(ranges, 2 * m);
+            }
+            ranges[m++] = r;
+        }
+
+        /**
+         * @param key The key of a cell.
+         * @return True if the cell was read.
+         */
+        public boolean contains(long key) {
+            for (int i = 0; i < n; i++) {
+                if (cells[i] == key) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @param r A range.
+         * @return True if the range was read.
+         */
+        public boolean contains(CellRange r) {
+            for (int i = 0; i < m; i++) {
+                if (ranges[i].equals(r)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * An aggregate function (SUM, AVERAGE, MIN, MAX or COUNT) over ranges and expressions,
+     * e.g., "SUM(A1:C100, B7, 2)".
+     */
+    static class Agg extends Formula {
+        final int function; // One of SUM, AVERAGE, MIN, MAX, COUNT
+        final CellRange[] ranges; // The range arguments, as offsets from the cell the formula belongs to
+        final Formula[] args; // The other arguments
+
+        Agg(int function, CellRange[] ranges, Formula[] args) {
+            this.function = function;
+            this.ranges = ranges;
+            this.args = args;
+        }
+
+        @Override
+        public double eval(Ex2Sheet sheet, int x, int y, Reads reads) {
+            Acc acc = new Acc();
+            for (CellRange r : ranges) {
+                if (reads != null) {
+                    reads.add(r.shift(x, y));
+                }
+                sheet.accumulate(r.getX1() + x, r.getY1() + y, r.getX2() + x, r.getY2() + y, acc);
+            }
+            for (Formula f : args) {
+                if (f instanceof Ref) { // A single cell is aggregated like a range: text is skipped
+                    int rx = x + ((Ref) f).dx, ry = y + ((Ref) f).dy;
+                    if (reads != null) {
+                        reads.add(CellEntry.key(rx, ry));
+                    }
+                    sheet.accumulate(rx, ry, acc);
+                } else {
+                    double v = f.eval(sheet, x, y, reads);
+                    if (Double.isNaN(v)) {
+                        acc.error = true;
+                    } else {
+                        acc.add(v);
+                    }
+                }
+            }
+            if (function == COUNT) {
+                return acc.count; // Counts the numbers only, errors are not counted
+            }
+            if (acc.error) {
+                return Double.NaN;
+            }
+            return switch (function) {
+                case SUM -> acc.sum;
+                case AVERAGE -> acc.count == 0 ? Double.NaN : acc.sum / acc.count; // Nothing to divide by
+                case MIN -> acc.count == 0 ? 0 : acc.min;
+                default -> acc.count == 0 ? 0 : acc.max;
+            };
+        }
+
+        @Override
+        int collect(long[] into, int n, int x, int y) {
+            for (Formula f : args) {
+                n = f.collect(into, n, x, y);
+            }
+            return n;
+        }
+
+        @Override
+        void collectRanges(ArrayList<CellRange> into, int x, int y) {
+            for (CellRange r : ranges) {
+                CellRange a = r.shift(x, y);
+                if (!into.contains(a)) {
+                    into.add(a);
+                }
+            }
+            for (Formula f : args) {
+                f.collectRanges(into, x, y);
+            }
+        }
+
+        @Override
+        void reach(int[] r) {
+            for (CellRange q : ranges) {
+                r[0] = Math.min(r[0], q.getX1());
+                r[1] = Math.min(r[1], q.getY1());
+                r[2] = Math.max(r[2], q.getX2());
+                r[3] = Math.max(r[3], q.getY2());
+            }
+            for (Formula f : args) {
+                f.reach(r);
+            }
+        }
+
+        @Override
+        boolean isConstant() {
+            if (ranges.length > 0) {
+                return false;
+            }
+            for (Formula f : args) {
+                if (!(f instanceof Num)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        boolean hasBranches() {
+            for (Formula f : args) {
+                if (f.hasBranches()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A recursive-descent parser over the tokens of a formula.
+     * Each method returns null when the tokens at the current position do not match.
+     * Every node whose operands are literals is folded into a literal as soon as it is built.
+     */
+    private static class Parser {
+        private final Lexer t;
+        private final int x, y; // The cell the formula belongs to, references are relative to it
+        private int pos = 0; // Index of the current token
+
+        Parser(Lexer t, int x, int y) {
+            this.t = t;
+            this.x = x;
+            this.y = y;
+        }
+
+        Formula cond() {
+            Formula ans = expr();
+            if (ans != null && isKind(Lexer.CMP)) {
+                int op = Arrays.asList(COMPARISONS).indexOf(t.text(pos++));
+                Formula right = expr();
+                ans = right == null ? null : fold(new Cmp(op, ans, right));
+            }
+            return ans;
+        }
+
+        Formula expr() {
+            Formula ans = term();
+            while (ans != null && isOp('+', '-')) {
+                char op = t.op(pos++);
+                Formula right = term();
+                ans = right == null ? null : fold(new Op(op, ans, right));
+            }
+            return ans;
+        }
+
+        Formula term() {
+            Formula ans = factor();
+            while (ans != null && isOp('*', '/')) {
+                char op = t.op(pos++);
+                Formula right = factor();
+                ans = right == null ? null : fold(new Op(op, ans, right));
+            }
+            return ans;
+        }
+
+        Formula factor() {
+            if (pos >= t.size()) {
+                return null;
+            }
+            switch (t.kind(pos)) {
+                case Lexer.NUM:
+                    return new Num(t.number(pos++));
+                case Lexer.CELL:
+                    long key = t.cell(pos++);
+                    return new Ref(CellEntry.keyX(key) - x, CellEntry.keyY(key) - y);
+                case Lexer.OPEN:
+                    pos++;
+                    Formula ans = cond();
+                    if (ans == null || pos >= t.size() || t.kind(pos) != Lexer.CLOSE) {
+                        return null; // Missing closing parenthesis
+                    }
+                    pos++;
+                    return ans;
+                case Lexer.NAME:
+                    return function();
+                default:
+                    return null;
+            }
+        }
+
+        // name '(' arg (',' arg)* ')', the current token being the name
+        Formula function() {
+            int function = -1;
+            String name = t.text(pos++);
+            for (int i = 0; i < NAMES.length; i++) {
+                if (NAMES[i].equalsIgnoreCase(name)) {
+                    function = i;
+                }
+            }
+            if (function < 0 || !isKind(Lexer.OPEN)) {
+                return null; // Unknown function, or not a call
+            }
+            ArrayList<CellRange> ranges = new ArrayList<>();
+            ArrayList<Formula> args = new ArrayList<>();
+            do {
+                pos++; // Skip the '(' or ','
+                if (isKind(Lexer.CELL) && pos + 2 < t.size() && t.kind(pos + 1) == Lexer.COLON
+                        && t.kind(pos + 2) == Lexer.CELL) {
+                    ranges.add(new CellRange(t.cell(pos), t.cell(pos + 2)).shift(-x, -y));
+                    pos += 3;
+                } else {
+                    Formula arg = cond();
+                    if (arg == null) {
+                        return null;
+                    }
+                    args.add(arg);
+                }
+            } while (isKind(Lexer.COMMA));
+            if (!isKind(Lexer.CLOSE)) {
+                return null; // Missing closing parenthesis
+            }
+            pos++;
+            Formula[] a = args.toArray(new Formula[0]);
+            if (ARITY[function] == 0) {
+                return fold(new Agg(function, ranges.toArray(NO_RANGES), a));
+            }
+            if (a.length != ARITY[function] || !ranges.isEmpty()) {
+                return null; // Wrong number of arguments, or a range where a number is expected
+            }
+            if (function == IF && a[0] instanceof Num) { // A constant condition: only one branch remains
+                double c = ((Num) a[0]).value;
+                return Double.isNaN(c) ? a[0] : c != 0 ? a[1] : a[2];
+            }
+            return fold(new Call(function, a));
+        }
+
+        // Replaces an expression of literals by its value
+        private static Formula fold(Formula f) {
+            return f.isConstant() ? new Num(f.eval(null, 0, 0, null)) : f;
+        }
+
+        // Checks the kind of the current token
+        private boolean isKind(int kind) {
+            return pos < t.size() && t.kind(pos) == kind;
+        }
+
+        // Checks whether the current token is one of two operators
+        private boolean isOp(char a, char b) {
+            return pos < t.size() && t.kind(pos) == Lexer.OP && (t.op(pos) == a || t.op(pos) == b);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Represents the write-ahead journal of a sheet file (the snapshot): every change of a cell is appended
+ * to "snapshot.journal" as an "x,y,data" line (the data is empty when the cell is cleared), so persisting
+ * an edit costs O(1) I/O instead of saving the whole sheet.
+ *
+ * The lines are buffered and forced to the disk in batches (fsync), after BATCH records or DELAY milliseconds,
+ * whichever comes first. A crash loses at most the last batch, and a line torn by a crash is ignored by replay.
+ *
+ * Once the journal grows beyond a limit, it is renamed to "snapshot.journal.old" and a new one is started.
+ * A background thread, other than the one forcing the records, then folds the old journal into a fresh snapshot:
+ * it loads the snapshot and replays the old journal into a private sheet, saves it to a temporary file, moves it
+ * over the snapshot, and deletes the old journal. Replaying a journal again over a snapshot which already holds it
+ * gives the same cells, so a crash at any point of a compaction loses nothing. Neither does a failed compaction:
+ * the journal is not rotated again while the old one exists, and the compaction is retried instead.
+ */
+public class Journal implements Closeable {
+    private static final int BATCH = 64; // Records buffered before they are forced to the disk
+    private static final long DELAY = 50; // Most milliseconds a record waits before it is forced to the disk
+    public static final long LIMIT = 1 << 24; // Bytes of journal after which it is compacted by default
+    private final Path snapshot, current, old; // The snapshot, the journal, and the journal being compacted
+    private final int width, height; // Dimensions of the sheet
+    private final long limit; // Bytes of journal after which it is compacted
+    private final ByteBuffer buf = ByteBuffer.allocate(1 << 16); // Records not written yet
+    private final ScheduledExecutorService worker; // Forces the records, in the background
+    private final ExecutorService compactor; // Compacts, in the background (a long compaction does not delay the syncs)
+    private FileChannel ch; // The journal, opened for appending
+    private long size; // Bytes in the journal, including the buffered ones
+    private int pending = 0; // Records not forced to the disk yet
+    private Future<?> compaction = null; // The last compaction
+    private IOException failure = null; // An error of the background thread, thrown by the next call
+
+    /**
+     * Opens (or creates) the journal of a snapshot file, creating an empty snapshot if there is none.
+     * The records already in the journal are kept: they are expected to be replayed already (see replay).
+     * A last line torn by a crash is cut off, so the next record starts a line of its own.
+     *
+     * @param snapshot The name of the snapshot file.
+     * @param width    The number of columns of the sheet.
+     * @param height   The number of rows of the sheet.
+     * @param limit    The bytes of journal after which it is folded into the snapshot.
+     * @throws IOException If the files cannot be created.
+     */
+    public Journal(String snapshot, int width, int height, long limit) throws IOException {
+        this.snapshot = Paths.get(snapshot);
+        this.current = Paths.get(snapshot + ".journal");
+        this.old = Paths.get(snapshot + ".journal.old");
+        this.width = width;
+        this.height = height;
+        this.limit = limit;
+        if (!Files.exists(this.snapshot)) {
+            new Ex2Sheet(width, height).save(snapshot);
+        }
+        if (Files.exists(current)) {
+            cutTorn(current);
+        }
+        ch = FileChannel.open(current, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        size = ch.size();
+        worker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "journal " + snapshot);
+            t.setDaemon(true); // Does not keep the application alive (close() forces what is left)
+            return t;
+        });
+        compactor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "journal compaction " + snapshot);
+            t.setDaemon(true); // close() waits for the compaction in progress
+            return t;
+        });
+        worker.scheduleWithFixedDelay(() -> {
+            try {
+                sync();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }, DELAY, DELAY, TimeUnit.MILLISECONDS);
+        if (Files.exists(old)) { // A compaction was interrupted: complete it
+            compaction = compactor.submit(this::compact);
+        }
+    }
+
+    /**
+     * Appends the change of a cell to the journal.
+     *
+     * @param x    Column index of the cell.
+     * @param y    Row index of the cell.
+     * @param data Its new content (null or empty to clear it).
+     * @throws IOException If the journal cannot be written.
+     */
+    public synchronized void append(int x, int y, String data) throws IOException {
+        check();
+        byte[] line = (x + "," + y + "," + (data == null ? "" : data) + "\n").getBytes(StandardCharsets.UTF_8);
+        if (line.length > buf.remaining()) {
+            write();
+        }
+        if (line.length > buf.capacity()) {
+            ch.write(ByteBuffer.wrap(line));
+        } else {
+            buf.put(line);
+        }
+        size += line.length;
+        if (++pending >= BATCH) {
+            sync();
+        }
+        if (size >= limit && (compaction == null || compaction.isDone())) {
+            if (Files.exists(old)) { // The last compaction failed: retry it, rather than move this journal over it
+                compaction = compactor.submit(this::compact);
+            } else {
+                rotate();
+            }
+        }
+    }
+
+    /**
+     * Forces the records appended so far to the disk.
+     *
+     * @throws IOException If the journal cannot be written.
+     */
+    public synchronized void sync() throws IOException {
+        if (pending == 0) {
+            return;
+        }
+        write();
+        ch.force(false);
+        pending = 0;
+    }
+
+    /**
+     * Forces the records to the disk, waits for the compaction in progress (if any) and closes the journal.
+     *
+     * @throws IOException If the journal cannot be written, or the compaction failed.
+     */
+    @Override
+    public void close() throws IOException {
+        worker.shutdown(); // No more periodic syncs
+        compactor.shutdown(); // But the compaction in progress completes
+        try {
+            worker.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            sync();
+            ch.close();
+            check();
+        }
+    }
+
+    /**
+     * Applies the journals of a snapshot file to a sheet which was loaded from it: first the journal
+     * of an interrupted compaction, then the current one. A last line torn by a crash is ignored.
+     *
+     * @param snapshot The name of the snapshot file.
+     * @param sheet    The sheet.
+     * @throws IOException If a journal cannot be read.
+     */
+    public static void replay(String snapshot, Sheet sheet) throws IOException {
+        replay(Paths.get(snapshot + ".journal.old"), sheet);
+        replay(Paths.get(snapshot + ".journal"), sheet);
+    }
+
+    // Applies the records of a journal file (if it exists) to a sheet
+    private static void replay(Path journal, Sheet sheet) throws IOException {
+        if (!Files.exists(journal)) {
+            return;
+        }
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                Files.newInputStream(journal), StandardCharsets.UTF_8), 1 << 16)) {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) >= 0) {
+                if (c != '\n') {
+                    line.append((char) c);
+                    continue;
+                }
+                int c1 = line.indexOf(","), c2 = c1 < 0 ? -1 : line.indexOf(",", c1 + 1);
+                if (c2 >= 0) { // Else not a record
+                    try {
+                        int x = Integer.parseInt(line.substring(0, c1)), y = Integer.parseInt(line.substring(c1 + 1, c2));
+                        if (sheet.isIn(x, y)) {
+                            sheet.set(x, y, line.substring(c2 + 1));
+                        }
+                    } catch (NumberFormatException e) {
+                        // Not a record
+                    }
+                }
+                line.setLength(0);
+            }
+        } // What is left in line was torn by a crash before its line break: it was never acknowledged
+    }
+
+    // Cuts off what follows the last line break of a journal (a record torn by a crash)
+    private static void cutTorn(Path journal) throws IOException {
+        try (FileChannel f = FileChannel.open(journal, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer b = ByteBuffer.allocate(1);
+            long end = f.size();
+            while (end > 0) {
+                b.clear();
+                f.read(b, end - 1);
+                if (b.get(0) == '\n') {
+                    break;
+                }
+                end--;
+            }
+            f.truncate(end);
+        }
+    }
+
+    // Writes the buffered records to the journal
+    private void write() throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            ch.write(buf);
+        }
+        buf.clear();
+    }
+
+    // Moves the journal aside for the background compaction, and starts a new one
+    private void rotate() throws IOException {
+        sync();
+        ch.close();
+        Files.move(current, old, StandardCopyOption.ATOMIC_MOVE);
+        ch = FileChannel.open(current, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        size = 0;
+        compaction = compactor.submit(this::compact);
+    }
+
+    // Folds the old journal into a fresh snapshot (in the background, on a sheet of its own)
+    private void compact() {
+        try {
+            Ex2Sheet sheet = new Ex2Sheet(width, height);
+            sheet.read(snapshot.toString());
+            replay(old, sheet);
+            Path tmp = Paths.get(snapshot + ".tmp");
+            if (Ex2Sheet.isBinary(snapshot.toString())) { // Keep the format of the snapshot
+                sheet.saveBinary(tmp.toString(), false);
+            } else {
+                sheet.save(tmp.toString());
+            }
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                out.force(true);
+            }
+            Files.move(tmp, snapshot, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            Files.delete(old); // Only once the snapshot holds it
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    // Keeps an error of the background thread, to be thrown by the next call
+    private synchronized void fail(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+    }
+
+    // Throws the error of the background thread, if any
+    private void check() throws IOException {
+        if (failure != null) {
+            IOException e = failure;
+            failure = null;
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,242 @@
+import java.util.Arrays;
+
+/**
+ * Splits the text of a formula into tokens in a single linear pass,
+ * without regular expressions or intermediate strings.
+ *
+ * Tokens are kept in parallel arrays: the kind of each token, where it starts in the text,
+ * and its value (the number of a NUM token, the packed key of a CELL token, the character of an OP token).
+ * A run of letters with no digits is a NAME token (e.g., the function "SUM"),
+ * and a comparison (one of Formula.COMPARISONS, e.g., "<=") is a CMP token.
+ * Spaces between tokens are skipped. Any other character which cannot start a token makes the text invalid.
+ */
+public class Lexer {
+    public static final int NUM = 0, CELL = 1, OP = 2, OPEN = 3, CLOSE = 4, COMMA = 5, COLON = 6, NAME = 7, CMP = 8;
+
+    private final CharSequence s; // The text
+    private int[] kind = new int[16]; // Kind of each token
+    private int[] start = new int[16]; // Index of the first character of each token
+    private int[] end = new int[16]; // Index after the last character of each token
+    private double[] number = new double[16]; // Value of each NUM token
+    private long[] cell = new long[16]; // Packed key of each CELL token (see CellEntry.key)
+    private int size = 0; // Number of tokens
+    private boolean valid = true; // False if some character could not be tokenized
+
+    /**
+     * Tokenizes a range of a text.
+     *
+     * @param s    The text, e.g., "=A1*(3-A2)".
+     * @param from The index of the first character to tokenize (e.g., 1 to skip the '=').
+     * @param to   The index after the last character to tokenize.
+     */
+    public Lexer(CharSequence s, int from, int to) {
+        this.s = s;
+        int i = from;
+        while (i < to && valid) {
+            char ch = s.charAt(i);
+            if (ch == ' ') {
+                i++; // Spaces separate tokens
+            } else if (ch == '+' || ch == '-' || ch == '*' || ch == '/') {
+                add(OP, i++);
+            } else if (ch == '(') {
+                add(OPEN, i++);
+            } else if (ch == ')') {
+                add(CLOSE, i++);
+            } else if (ch == ',') {
+                add(COMMA, i++);
+            } else if (ch == ':') {
+                add(COLON, i++);
+            } else if (ch == '<' || ch == '>' || ch == '=' || ch == '!') {
+                i = comparison(i, to);
+            } else if (ch >= '0' && ch <= '9') {
+                i = number(i, to);
+            } else if (isLetter(ch)) {
+                i = cell(i, to);
+            } else {
+                valid = false; // Invalid character
+            }
+        }
+    }
+
+    /**
+     * @return True if the whole text was split into tokens.
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * @return The number of tokens.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param i The index of a token.
+     * @return The kind of the token (NUM, CELL, OP, OPEN, CLOSE, COMMA, COLON, NAME or CMP).
+     */
+    public int kind(int i) {
+        return kind[i];
+    }
+
+    /**
+     * @param i The index of an OP token.
+     * @return The operator character.
+     */
+    public char op(int i) {
+        return s.charAt(start[i]);
+    }
+
+    /**
+     * @param i The index of a NUM token.
+     * @return The value of the number.
+     */
+    public double number(int i) {
+        return number[i];
+    }
+
+    /**
+     * @param i The index of a CELL token.
+     * @return The packed key of the cell.
+     */
+    public long cell(int i) {
+        return cell[i];
+    }
+
+    /**
+     * @param i The index of a NAME or CMP token.
+     * @return The text of the token, e.g., "SUM" or "<=".
+     */
+    public String text(int i) {
+        return s.subSequence(start[i], end[i]).toString();
+    }
+
+    /**
+     * Writes the tokens as a template, relative to the cell the formula belongs to: each cell
+     * is written as its offset from that cell, R1C1-style (e.g., "A1*B1" in C1 is "C[-2]R[0] * C[-1]R[0]"),
+     * so the formulas of a filled-down column all have the same template.
+     *
+     * @param x Column index of the cell the formula belongs to.
+     * @param y Row index of the cell the formula belongs to.
+     * @return The template, tokens separated by a space.
+     */
+    public String template(int x, int y) {
+        StringBuilder ans = new StringBuilder(2 * s.length());
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                ans.append(' '); // Keeps "1 2" apart from "12"
+            }
+            if (kind[i] == CELL) {
+                ans.append("C[").append(CellEntry.keyX(cell[i]) - x).append("]R[")
+                        .append(CellEntry.keyY(cell[i]) - y).append(']');
+            } else if (kind[i] == NAME) {
+                for (int j = start[i]; j < end[i]; j++) {
+                    ans.append(Character.toUpperCase(s.charAt(j))); // Names are not case-sensitive
+                }
+            } else {
+                ans.append(s, start[i], end[i]);
+            }
+        }
+        return ans.toString();
+    }
+
+    // comparison := one of Formula.COMPARISONS (the longest match), returns the index after it
+    private int comparison(int i, int to) {
+        int length = 0;
+        for (String op : Formula.COMPARISONS) {
+            if (op.length() > length && matches(i, to, op)) {
+                length = op.length();
+            }
+        }
+        if (length == 0) {
+            valid = false; // A lone '=' or '!'
+            return i;
+        }
+        add(CMP, i, i + length);
+        return i + length;
+    }
+
+    // number := digits ('.' digits)?, returns the index after it
+    private int number(int i, int to) {
+        int first = i;
+        while (i < to && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+            i++;
+        }
+        if (i < to && s.charAt(i) == '.') {
+            i++;
+            int frac = i;
+            while (i < to && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+                i++;
+            }
+            if (i == frac) {
+                valid = false; // A dot must be followed by a digit
+                return i;
+            }
+        }
+        add(NUM, first, i);
+        number[size - 1] = NumberParser.parse(s, first, i); // Same fast path as number cells
+        return i;
+    }
+
+    // cell := letters digits (e.g., "AB12"), name := letters (e.g., "SUM"), returns the index after it
+    private int cell(int i, int to) {
+        int first = i;
+        while (i < to && isLetter(s.charAt(i))) {
+            i++;
+        }
+        if (i == to || s.charAt(i) < '0' || s.charAt(i) > '9') {
+            add(NAME, first, i);
+            return i;
+        }
+        while (i < to && (isLetter(s.charAt(i)) || (s.charAt(i) >= '0' && s.charAt(i) <= '9'))) {
+            i++;
+        }
+        long key = CellEntry.parseKey(s, first, i);
+        if (key < 0) {
+            valid = false; // Not a cell reference
+            return i;
+        }
+        add(CELL, first, i);
+        cell[size - 1] = key;
+        return i;
+    }
+
+    // Checks whether the text at i (before to) starts with a string
+    private boolean matches(int i, int to, String op) {
+        if (i + op.length() > to) {
+            return false;
+        }
+        for (int j = 0; j < op.length(); j++) {
+            if (s.charAt(i + j) != op.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Appends a single-character token
+    private void add(int k, int at) {
+        add(k, at, at + 1);
+    }
+
+    // Appends a token spanning [at, to), growing the arrays as needed
+    private void add(int k, int at, int to) {
+        if (size == kind.length) {
+            kind = Arrays.copyOf(kind, size * 2);
+            start = Arrays.copyOf(start, size * 2);
+            end = Arrays.copyOf(end, size * 2);
+            number = Arrays.copyOf(number, size * 2);
+            cell = Arrays.copyOf(cell, size * 2);
+        }
+        kind[size] = k;
+        start[size] = at;
+        end[size] = to;
+        size++;
+    }
+
+    // Checks for an ASCII letter
+    private static boolean isLetter(char ch) {
+        return (ch >= 'A' && ch <= 'Z') || (ch >= 'a' && ch <= 'z');
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Recognizes and parses decimal numbers in a single pass, without exceptions or intermediate strings.
+ *
+ * Accepted: optional spaces, an optional sign, digits with an optional fraction (at least one digit overall),
+ * an optional exponent (e.g., "1.5e-3"), and optional spaces. Anything else is "not a number" (NaN).
+ *
+ * Most numbers are computed exactly from their digits (Clinger's fast path: a mantissa of up to 15 digits
+ * and a power of ten up to 22 are both exact doubles, so one multiplication or division rounds correctly).
+ * Only longer or more extreme numbers fall back to Double.parseDouble, once they are known to be valid.
+ */
+public class NumberParser {
+    private static final double[] POW10 = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22}; // Exact powers of ten
+
+    /**
+     * Parses a whole string as a number.
+     *
+     * @param s The string, e.g., "42", "-0.5", "1e3".
+     * @return The value, or NaN if the string is not a number.
+     */
+    public static double parse(CharSequence s) {
+        return s == null ? Double.NaN : parse(s, 0, s.length());
+    }
+
+    /**
+     * Parses a range of a text as a number.
+     *
+     * @param s    The text.
+     * @param from The index of the first character.
+     * @param to   The index after the last character.
+     * @return The value, or NaN if the range is not a number.
+     */
+    public static double parse(CharSequence s, int from, int to) {
+        int i = from;
+        while (i < to && s.charAt(i) == ' ') {
+            i++;
+        }
+        while (to > i && s.charAt(to - 1) == ' ') {
+            to--;
+        }
+        int first = i; // Start of the number itself
+        boolean negative = false;
+        if (i < to && (s.charAt(i) == '+' || s.charAt(i) == '-')) {
+            negative = s.charAt(i++) == '-';
+        }
+
+        long mantissa = 0; // Significant digits, while they fit exactly
+        int digits = 0; // Number of digits in the mantissa (leading zeros excluded)
+        int scale = 0; // Power of ten to apply to the mantissa
+        boolean any = false; // Some digit was seen
+        boolean exact = true; // The mantissa holds all the digits
+        while (i < to && isDigit(s.charAt(i))) {
+            any = true;
+            if (digits < 15) {
+                mantissa = mantissa * 10 + (s.charAt(i) - '0');
+                if (mantissa > 0) {
+                    digits++;
+                }
+            } else {
+                exact = false;
+            }
+            i++;
+        }
+        if (i < to && s.charAt(i) == '.') {
+            i++;
+            while (i < to && isDigit(s.charAt(i))) {
+                any = true;
+                if (digits < 15) {
+                    mantissa = mantissa * 10 + (s.charAt(i) - '0');
+                    if (mantissa > 0) {
+                        digits++;
+                    }
+                    scale--;
+                } else {
+                    exact = false;
+                }
+                i++;
+            }
+        }
+        if (!any) {
+            return Double.NaN; // No digits at all
+        }
+        if (i < to && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+            i++;
+            boolean negExp = false;
+            if (i < to && (s.charAt(i) == '+' || s.charAt(i) == '-')) {
+                negExp = s.charAt(i++) == '-';
+            }
+            if (i == to || !isDigit(s.charAt(i))) {
+                return Double.NaN; // An exponent needs digits
+            }
+            int exp = 0;
+            while (i < to && isDigit(s.charAt(i))) {
+                exp = Math.min(exp * 10 + (s.charAt(i++) - '0'), 100000); // Saturate, it is out of range anyway
+            }
+            scale += negExp ? -exp : exp;
+        }
+        if (i != to) {
+            return Double.NaN; // Trailing characters
+        }
+
+        double ans;
+        if (exact && scale >= 0 && scale < POW10.length) {
+            ans = mantissa * POW10[scale];
+        } else if (exact && scale < 0 && -scale < POW10.length) {
+            ans = mantissa / POW10[-scale];
+        } else { // Rare: the syntax is valid, so this cannot throw
+            return Double.parseDouble(s.subSequence(first, to).toString());
+        }
+        return negative ? -ans : ans;
+    }
+
+    // Checks for a decimal digit
+    private static boolean isDigit(char ch) {
+        return ch >= '0' && ch <= '9';
+    }
+}
@@ -0,0 +1,269 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Represents a spatial index of ranges (an R-tree): each range is stored with a value (e.g., its graph node),
+ * and the ranges which contain a given cell are found in O(log n + k) rather than by testing every range.
+ *
+ * Every node holds up to MAX entries in parallel arrays: the bounding rectangle of each entry and either
+ * its child node (inner nodes) or its value (leaves). A node which overflows is split in two halves along
+ * the axis where the centers of its entries are the most spread, and a node which underflows after
+ * a removal is dissolved and its values inserted again.
+ */
+public class RangeIndex {
+    private static final int MAX = 8; // Most entries of a node
+    private static final int MIN = 3; // Fewest entries of a node (except the root)
+    private static final long[] NONE = new long[0];
+    private Node root = new Node(true);
+    private int size = 0; // Number of ranges
+
+    // A node of the tree, with one spare slot to hold an overflowing entry until it is split
+    private static final class Node {
+        final boolean leaf;
+        int n = 0; // Number of entries
+        final int[] x1 = new int[MAX + 1], y1 = new int[MAX + 1]; // Lowest corner of each entry
+        final int[] x2 = new int[MAX + 1], y2 = new int[MAX + 1]; // Highest corner of each entry
+        final Node[] child; // Child of each entry (inner nodes)
+        final long[] value; // Value of each entry (leaves)
+
+        Node(boolean leaf) {
+            this.leaf = leaf;
+            child = leaf ? null : new Node[MAX + 1];
+            value = leaf ? new long[MAX + 1] : null;
+        }
+
+        // Appends an entry, without its child or value
+        void add(int ax1, int ay1, int ax2, int ay2) {
+            x1[n] = ax1;
+            y1[n] = ay1;
+            x2[n] = ax2;
+            y2[n] = ay2;
+            n++;
+        }
+
+        // Appends a child, bounded by its entries
+        void add(Node c) {
+            add(0, 0, 0, 0);
+            child[n - 1] = c;
+            refit(n - 1);
+        }
+
+        // Recomputes the rectangle of entry i from the entries of its child
+        void refit(int i) {
+            Node c = child[i];
+            x1[i] = y1[i] = Integer.MAX_VALUE;
+            x2[i] = y2[i] = Integer.MIN_VALUE;
+            for (int j = 0; j < c.n; j++) {
+                x1[i] = Math.min(x1[i], c.x1[j]);
+                y1[i] = Math.min(y1[i], c.y1[j]);
+                x2[i] = Math.max(x2[i], c.x2[j]);
+                y2[i] = Math.max(y2[i], c.y2[j]);
+            }
+        }
+
+        // Removes entry i, moving the last entry into its place
+        void delete(int i) {
+            n--;
+            x1[i] = x1[n];
+            y1[i] = y1[n];
+            x2[i] = x2[n];
+            y2[i] = y2[n];
+            if (leaf) {
+                value[i] = value[n];
+            } else {
+                child[i] = child[n];
+                child[n] = null;
+            }
+        }
+
+        // Moves entry i of this node to the end of another node
+        void moveTo(int i, Node other) {
+            other.add(x1[i], y1[i], x2[i], y2[i]);
+            if (leaf) {
+                other.value[other.n - 1] = value[i];
+            } else {
+                other.child[other.n - 1] = child[i];
+            }
+        }
+    }
+
+    /**
+     * @return The number of ranges in the index.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds a range.
+     *
+     * @param r     The range.
+     * @param value Its value.
+     */
+    public void add(CellRange r, long value) {
+        insert(r.getX1(), r.getY1(), r.getX2(), r.getY2(), value);
+        size++;
+    }
+
+    /**
+     * Removes a range with the given value, if present.
+     *
+     * @param r     The range.
+     * @param value Its value.
+     */
+    public void remove(CellRange r, long value) {
+        ArrayList<Node> orphans = new ArrayList<>(); // Dissolved nodes, whose values are inserted again
+        if (!remove(root, r.getX1(), r.getY1(), r.getX2(), r.getY2(), value, orphans)) {
+            return;
+        }
+        size--;
+        if (!root.leaf && root.n == 1) {
+            root = root.child[0]; // Shrink the tree
+        }
+        for (Node o : orphans) {
+            reinsert(o);
+        }
+    }
+
+    /**
+     * Finds the ranges which contain a cell.
+     *
+     * @param x Column index of the cell.
+     * @param y Row index of the cell.
+     * @return The values of these ranges (empty if none).
+     */
+    public long[] find(int x, int y) {
+        long[] ans = NONE;
+        int count = 0;
+        ArrayList<Node> stack = new ArrayList<>();
+        stack.add(root);
+        while (!stack.isEmpty()) {
+            Node node = stack.remove(stack.size() - 1);
+            for (int i = 0; i < node.n; i++) {
+                if (x < node.x1[i] || x > node.x2[i] || y < node.y1[i] || y > node.y2[i]) {
+                    continue; // Only the entries containing the cell are followed
+                }
+                if (node.leaf) {
+                    if (count == ans.length) {
+                        ans = Arrays.copyOf(ans, Math.max(4, 2 * count));
+                    }
+                    ans[count++] = node.value[i];
+                } else {
+                    stack.add(node.child[i]);
+                }
+            }
+        }
+        return count == ans.length ? ans : Arrays.copyOf(ans, count);
+    }
+
+    // Inserts an entry from the root, growing a new root if the old one splits
+    private void insert(int ax1, int ay1, int ax2, int ay2, long value) {
+        Node split = insert(root, ax1, ay1, ax2, ay2, value);
+        if (split != null) {
+            Node top = new Node(false);
+            top.add(root);
+            top.add(split);
+            root = top;
+        }
+    }
+
+    // Inserts an entry below a node, returns the new sibling of the node if it had to split
+    private Node insert(Node node, int ax1, int ay1, int ax2, int ay2, long value) {
+        if (node.leaf) {
+            node.add(ax1, ay1, ax2, ay2);
+            node.value[node.n - 1] = value;
+        } else {
+            int best = 0; // The child whose rectangle grows the least (then the smallest one)
+            double bestGrowth = Double.POSITIVE_INFINITY, bestArea = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < node.n; i++) {
+                double area = area(node.x1[i], node.y1[i], node.x2[i], node.y2[i]);
+                double growth = area(Math.min(ax1, node.x1[i]), Math.min(ay1, node.y1[i]),
+                        Math.max(ax2, node.x2[i]), Math.max(ay2, node.y2[i])) - area;
+                if (growth < bestGrowth || (growth == bestGrowth && area < bestArea)) {
+                    best = i;
+                    bestGrowth = growth;
+                    bestArea = area;
+                }
+            }
+            Node split = insert(node.child[best], ax1, ay1, ax2, ay2, value);
+            node.refit(best);
+            if (split != null) {
+                node.add(split);
+            }
+        }
+        return node.n > MAX ? split(node) : null;
+    }
+
+    // Splits an overflowing node: the upper half of its entries (by center, along the widest axis) moves out
+    private static Node split(Node node) {
+        double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < node.n; i++) {
+            double cx = ((double) node.x1[i] + node.x2[i]) / 2, cy = ((double) node.y1[i] + node.y2[i]) / 2;
+            minX = Math.min(minX, cx);
+            maxX = Math.max(maxX, cx);
+            minY = Math.min(minY, cy);
+            maxY = Math.max(maxY, cy);
+        }
+        boolean byX = maxX - minX >= maxY - minY;
+        Integer[] order = new Integer[node.n];
+        for (int i = 0; i < node.n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> byX
+                ? Long.compare((long) node.x1[a] + node.x2[a], (long) node.x1[b] + node.x2[b])
+                : Long.compare((long) node.y1[a] + node.y2[a], (long) node.y1[b] + node.y2[b]));
+
+        Node low = new Node(node.leaf), high = new Node(node.leaf);
+        for (int i = 0; i < order.length; i++) {
+            node.moveTo(order[i], i < order.length / 2 ? low : high);
+        }
+        node.n = 0; // The node keeps the lower half
+        for (int i = 0; i < low.n; i++) {
+            low.moveTo(i, node);
+        }
+        if (!node.leaf) {
+            Arrays.fill(node.child, node.n, node.child.length, null);
+        }
+        return high;
+    }
+
+    // Removes an entry below a node, collecting the nodes which underflow, returns false if not found
+    private boolean remove(Node node, int ax1, int ay1, int ax2, int ay2, long value, ArrayList<Node> orphans) {
+        for (int i = 0; i < node.n; i++) {
+            if (node.leaf) {
+                if (node.value[i] == value && node.x1[i] == ax1 && node.y1[i] == ay1
+                        && node.x2[i] == ax2 && node.y2[i] == ay2) {
+                    node.delete(i);
+                    return true;
+                }
+            } else if (ax1 >= node.x1[i] && ax2 <= node.x2[i] && ay1 >= node.y1[i] && ay2 <= node.y2[i]
+                    && remove(node.child[i], ax1, ay1, ax2, ay2, value, orphans)) {
+                if (node.child[i].n < MIN) {
+                    orphans.add(node.child[i]);
+                    node.delete(i);
+                } else {
+                    node.refit(i);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Inserts again all the values below a dissolved node
+    private void reinsert(Node node) {
+        for (int i = 0; i < node.n; i++) {
+            if (node.leaf) {
+                insert(node.x1[i], node.y1[i], node.x2[i], node.y2[i], node.value[i]);
+            } else {
+                reinsert(node.child[i]);
+            }
+        }
+    }
+
+    // The area of a rectangle (as a double, it may not fit an int)
+    private static double area(int ax1, int ay1, int ax2, int ay2) {
+        return ((double) ax2 - ax1 + 1) * ((double) ay2 - ay1 + 1);
+    }
+}
@@ -1,52 +1,75 @@
-import java.util.ArrayList;
-
 // Class representing a specific type of cell (SCell), implementing the Cell interface
 public class SCell implements Cell {
     private String line; // Raw data of the cell
+    private final int x, y; // Coordinates of the cell, its formula refers to cells relative to them
     private int type; // Type of the cell (e.g., number, formula, text)
     private int order; // Order for computation or sorting
-    private String computed; // Computed value of the cell after evaluation
-    private ArrayList<String> dependencies = new ArrayList<>(); // List of dependent cell references
+    private double value = Double.NaN; // Computed value of a formula cell (NaN until it is computed)
+    private String shown; // The computed value formatted for display, on demand (see getComputed)
+    private double number; // Parsed value of a number cell
+    private Formula formula; // Compiled expression tree of a formula cell (null otherwise)
+    private long[] dependencies = NO_DEPENDENCIES; // Packed keys of the (distinct) cells this formula refers to
+    private CellRange[] ranges = NO_RANGES; // The (distinct) ranges this formula refers to, e.g., in SUM(A1:A9)
+
+    // Shared dependencies of the cells which are not formulas
+    private static final long[] NO_DEPENDENCIES = new long[0];
+    private static final CellRange[] NO_RANGES = new CellRange[0];
+
+    // The shared, immutable empty cell: a sparse sheet returns it for every coordinate which holds no data
+    public static final SCell EMPTY = new SCell() {
+        @Override
+        public void setData(String s) {
+            throw new UnsupportedOperationException("The empty cell is shared, use Sheet.set instead");
+        }
 
-    // Constructor to initialize SCell with a string input
-    public SCell(String s) {
-        setData(s); // Set initial data and determine its type
-    }
+        @Override
+        public void setType(int t) {
+            throw new UnsupportedOperationException("The empty cell is shared, use Sheet.set instead");
+        }
 
-    // Check if the given string is a formula (starts with '=')
-    public boolean isForm(String s) {
-        if (s.isEmpty()) {
-            return false; // Empty strings cannot be formulas
+        @Override
+        public void setOrder(int t) {
+            throw new UnsupportedOperationException("The empty cell is shared, use Sheet.set instead");
         }
 
-        if (s.charAt(0) == '=') { // Formula must start with '='
-            if (s.length() == 1) { // '=' alone is invalid
-                type = Ex2Utils.ERR_FORM_FORMAT; // Set error type for invalid formula
-                return false;
-            }
-            s = s.replaceAll(" ", ""); // Remove spaces for validation
-            boolean res = isValidForm(s.substring(1)); // Check the formula's validity
-            if (!res) {
-                type = Ex2Utils.ERR_FORM_FORMAT; // Mark as error if invalid
-            }
-            return res;
+        @Override
+        public void setValue(double v) {
+            throw new UnsupportedOperationException("The empty cell is shared, use Sheet.set instead");
         }
-        return false; // Not a formula if it doesn't start with '='
+
+    };
+
+    // Constructor to initialize SCell with a string input (as if it was the cell A0)
+    public SCell(String s) {
+        this(s, 0, 0);
     }
 
-    // Helper function to check if a character is a valid operator
-    private static boolean isOperator(char ch) {
-        return ch == '+' || ch == '-' || ch == '*' || ch == '/';
+    // Constructor to initialize the SCell at the given coordinates with a string input
+    public SCell(String s, int x, int y) {
+        this.x = x;
+        this.y = y;
+        setData(s); // Set initial data and determine its type
+    }
+
+    // Constructor of an empty cell, without going through setData
+    private SCell() {
+        x = 0;
+        y = 0;
+        line = Ex2Utils.EMPTY_CELL;
+        type = Ex2Utils.TEXT;
     }
 
-    // Check if the string is a valid number
-    private boolean isNumber(String s) {
-        try {
-            Double.parseDouble(s); // Attempt parsing the string to a double
-            return true;
-        } catch (NumberFormatException e) {
-            return false; // Not a number if exception occurs
+    // Check if the given string is a formula (starts with '='), compiling it in the same pass
+    public boolean isForm(String s) {
+        if (s.isEmpty() || s.charAt(0) != '=') {
+            return false; // Not a formula if it doesn't start with '='
+        }
+        formula = Formula.compile(s, 1, x, y); // Tokenize, then share the tree of its template (or build it)
+        if (formula == null) {
+            type = Ex2Utils.ERR_FORM_FORMAT; // Mark as error if invalid (including '=' alone)
+            return false;
         }
+        return true;
     }
 
     // Getter for order
@@ -65,11 +88,18 @@ public class SCell implements Cell {
     @Override
     public void setData(String s) {
         line = s; // Store raw input
-        if (isNumber(s)) { // If input is a valid number
+        type = Ex2Utils.TEXT; // Forget the type of the previous data
+        formula = null;
+        dependencies = NO_DEPENDENCIES;
+        ranges = NO_RANGES;
+        value = Double.NaN;
+        shown = null;
+        double d = NumberParser.parse(s); // Recognize and parse in one pass, NaN if not a number
+        if (!Double.isNaN(d)) { // If input is a valid number
             type = Ex2Utils.NUMBER; // Mark type as number
-            double d = Double.parseDouble(s);
+            number = d; // Keep the value, formulas read it without parsing again
             line = "" + d; // Normalize the number format
-        } else if (isForm(s)) { // If input is a valid formula
+        } else if (isForm(s)) { // If input is a valid formula (compiled once per edit)
             type = Ex2Utils.FORM; // Mark type as formula
             findDependencies(); // Identify cell references in the formula
         } else { // Otherwise, treat as text or invalid formula
@@ -103,103 +133,69 @@ public class SCell implements Cell {
         order = t;
     }
 
-    // Getter for computed value
+    // Getter for the value of a number cell (parsed once, when the data was set)
+    public double getNumber() {
+        return number;
+    }
+
+    // Getter for the computed value, formatted for display when first asked for (null if not computed)
     public String getComputed() {
-        return computed;
+        String ans = shown;
+        if (ans == null && !Double.isNaN(value)) {
+            ans = "" + value;
+            shown = ans; // Computed again only after the value changes
+        }
+        return ans;
     }
 
-    // Setter for computed value
-    public void setComputed(String t) {
-        computed = t;
+    // Getter for the computed value of a formula cell (NaN if not computed, or an error: see getType)
+    public double getValue() {
+        return value;
     }
 
-    // Extract dependencies (cell references) from the formula
-    public void findDependencies() {
-        if (line == null) {
-            return;
-        }
-        String s = line.substring(1); // Remove '='
-        s = s.replaceAll(" ", ""); // Remove spaces
-        String[] words = s.split("[+\\-*/() ]"); // Split by operators
-        for (String word : words) {
-            if (!word.isEmpty() && word.substring(0, 1).matches("[A-Za-z]")) { // Check for cell reference
-                if (word.length() <= 3) { // Assuming references like A1, B2
-                    Index2D c = new CellEntry(word); // Validate cell reference
-                    if (c.isValid()) {
-                        dependencies.add(word); // Add valid reference to dependencies
-                    }
-                }
-            }
-        }
+    // Setter for the computed value of a formula cell
+    public void setValue(double v) {
+        value = v;
+        shown = null;
     }
 
-    // Getter for dependencies
-    public ArrayList<String> getDependencies() {
-        return dependencies;
+    // Getter for the column of the cell
+    public int getX() {
+        return x;
     }
 
-    // Validate the syntax of the formula
-    public static boolean isValidForm(String s) {
-        if (s.isEmpty()) {
-            return false; // Empty formula is invalid
-        }
+    // Getter for the row of the cell
+    public int getY() {
+        return y;
+    }
 
-        // Ensure the string contains only valid characters
-        boolean onlyAlphaNumeric = s.matches("^[a-zA-Z0-9+\\-*/().]+$");
-        if (!onlyAlphaNumeric) {
-            return false;
-        }
+    // Getter for the compiled formula, relative to getX() and getY() (null if this cell is not a valid formula)
+    public Formula getFormula() {
+        return formula;
+    }
 
-        // FSM-like validation for formula structure
-        final int NUM = 0, OP = 1, OPEN = 2, CLOSE = 3, DOT = 4;
-        int prev = -1; // Tracks previous token type
-        int countParentheses = 0;
-
-        for (int i = 0; i < s.length(); i++) {
-            char ch = s.charAt(i);
-
-            if (ch == '(') {
-                if (prev == NUM || prev == CLOSE || prev == DOT) {
-                    return false;
-                }
-                countParentheses++;
-                prev = OPEN;
-            } else if (ch == ')') {
-                if (prev == OP || prev == OPEN || countParentheses == 0 || prev == DOT) {
-                    return false;
-                }
-                countParentheses--;
-                prev = CLOSE;
-            } else if (isOperator(ch)) {
-                if (prev == OP || prev == OPEN || prev == -1 || prev == DOT) {
-                    return false;
-                }
-                prev = OP;
-            } else if (Character.isDigit(ch)) {
-                if (prev == CLOSE) {
-                    return false;
-                }
-                prev = NUM;
-            } else if (ch == '.') {
-                if (prev != NUM) { // Ensure a dot only follows a digit
-                    return false;
-                }
-                prev = DOT;
-            } else if (Character.isLetter(ch)) {
-                if (prev == NUM || prev == CLOSE || prev == DOT) {
-                    return false;
-                }
-                prev = NUM; // Letters are treated like numbers (variables)
-            } else {
-                return false; // Invalid character
-            }
+    // Extract dependencies (cell references) from the compiled formula
+    public void findDependencies() {
+        if (formula == null) {
+            return;
         }
+        long[] keys = formula.references(x, y); // Packed keys, with no intermediate strings
+        dependencies = keys.length == 0 ? NO_DEPENDENCIES : keys;
+        ranges = formula.ranges(x, y); // Each range is a single dependency, whatever its size
+    }
 
-        // Ensure valid end state
-        if (prev == OP || prev == OPEN || prev == DOT || countParentheses != 0) {
-            return false;
-        }
+    // Getter for dependencies, as packed cell keys (see CellEntry.key)
+    public long[] getDependencies() {
+        return dependencies;
+    }
 
-        return true;
+    // Getter for the ranges the formula refers to (as a whole, not cell by cell)
+    public CellRange[] getRanges() {
+        return ranges;
+    }
+
+    // Validate the syntax of the formula (without the leading '=')
+    public static boolean isValidForm(String s) {
+        return Formula.compile(s, 0) != null; // A single tokenizer pass, no regular expressions
     }
 }
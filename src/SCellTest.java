@@ -1,6 +1,5 @@
 import org.junit.jupiter.api.Test;
 import static org.junit.jupiter.api.Assertions.*;
-import java.util.ArrayList;
 
 public class SCellTest {
 
@@ -27,11 +26,9 @@ public class SCellTest {
         assertEquals("=A1+B2", cell.getData()); // Ensure the formula is stored correctly
         assertEquals(Ex2Utils.FORM, cell.getType()); // Check the cell type is identified as a formula
 
-        // Verify dependencies were correctly parsed
-        ArrayList<String> dependencies = cell.getDependencies();
-        assertTrue(dependencies.contains("A1"));
-        assertTrue(dependencies.contains("B2"));
-        assertEquals(2, dependencies.size());
+        // Verify dependencies were correctly parsed into packed cell keys
+        long[] dependencies = cell.getDependencies();
+        assertArrayEquals(new long[]{CellEntry.key(0, 1), CellEntry.key(1, 2)}, dependencies);
     }
 
     @Test
@@ -45,13 +42,10 @@ public class SCellTest {
     @Test
     public void testDependencyDetection() {
         // Test that dependencies are detected in a complex formula
-        SCell cell = new SCell("=A1+B2/C3-D4");
-        ArrayList<String> dependencies = cell.getDependencies();
-        assertTrue(dependencies.contains("A1"));
-        assertTrue(dependencies.contains("B2"));
-        assertTrue(dependencies.contains("C3"));
-        assertTrue(dependencies.contains("D4"));
-        assertEquals(4, dependencies.size());
+        SCell cell = new SCell("=A1+B2/C3-D4+a1");
+        long[] dependencies = cell.getDependencies();
+        assertArrayEquals(new long[]{CellEntry.key(0, 1), CellEntry.key(1, 2), CellEntry.key(2, 3),
+                CellEntry.key(3, 4)}, dependencies); // Each cell only once
     }
 
     @Test
@@ -76,4 +70,100 @@ public class SCellTest {
         assertFalse(SCell.isValidForm("A1+")); // Missing operand
         assertFalse(SCell.isValidForm("A1+B2#")); // Invalid character
     }
+
+    @Test
+    public void testCompiledFormula() {
+        // The formula is compiled once into an expression tree when the data is set
+        SCell cell = new SCell("=(1+2)*3-4/2");
+        assertNotNull(cell.getFormula());
+        assertEquals(7.0, cell.getFormula().eval(null, 0, 0, null), Ex2Utils.EPS);
+
+        cell.setData("=1.2.3"); // Only valid characters, but not a valid expression
+        assertEquals(Ex2Utils.ERR_FORM_FORMAT, cell.getType());
+        assertNull(cell.getFormula());
+
+        cell.setData("Hello");
+        assertNull(cell.getFormula()); // Text has no compiled formula
+        assertEquals(0, cell.getDependencies().length);
+    }
+
+    @Test
+    public void testFormulaTokens() {
+        // Spaces between tokens are ignored, other characters are not
+        SCell cell = new SCell("= ( AB12 + 2.5 ) * c3 ");
+        assertEquals(Ex2Utils.FORM, cell.getType());
+        assertArrayEquals(new long[]{CellEntry.key(27, 12), CellEntry.key(2, 3)}, cell.getDependencies());
+        assertFalse(SCell.isValidForm("A1$2"));
+        assertFalse(SCell.isValidForm("2.")); // A dot must be followed by a digit
+        assertFalse(SCell.isValidForm("1A")); // A number followed by a reference
+        assertEquals(Ex2Utils.ERR_FORM_FORMAT, new SCell("=").getType());
+    }
+
+    @Test
+    public void testNumberRecognition() {
+        SCell cell = new SCell(" -2.5e3 ");
+        assertEquals(Ex2Utils.NUMBER, cell.getType());
+        assertEquals(-2500.0, cell.getNumber());
+        assertEquals("-2500.0", cell.getData());
+        assertEquals(0.1, NumberParser.parse("0.1")); // Correctly rounded on the fast path
+        assertEquals(Double.parseDouble("12345678901234567890.5"), NumberParser.parse("12345678901234567890.5"));
+        assertEquals(1e-300, NumberParser.parse("1e-300"));
+        assertTrue(Double.isNaN(NumberParser.parse("1e"))); // An exponent needs digits
+        assertTrue(Double.isNaN(NumberParser.parse(".")));
+        assertTrue(Double.isNaN(NumberParser.parse("4 2")));
+        assertEquals(Ex2Utils.TEXT, new SCell("12abc").getType());
+    }
+
+    @Test
+    public void testRangeFormula() {
+        SCell cell = new SCell("=SUM(A1:B300, C4) + max(2, C4)");
+        assertEquals(Ex2Utils.FORM, cell.getType());
+        assertArrayEquals(new long[]{CellEntry.key(2, 4)}, cell.getDependencies());
+        assertEquals(1, cell.getRanges().length); // A single dependency for 600 cells
+        assertEquals("A1:B300", cell.getRanges()[0].toString());
+        assertFalse(SCell.isValidForm("SUM()"));
+        assertFalse(SCell.isValidForm("SUM(A1:)"));
+        assertFalse(SCell.isValidForm("A1:B2")); // A range is only an argument
+        assertFalse(SCell.isValidForm("FOO(1)"));
+    }
+
+    @Test
+    public void testFunctionsAndFolding() {
+        Formula f = new SCell("=pow(2,10)*A1").getFormula();
+        assertTrue(f instanceof Formula.Op); // One multiplication is left
+        assertEquals(1024.0, ((Formula.Num) ((Formula.Op) f).left).value);
+        assertTrue(new SCell("=(1+2)*sin(0) <= cos(0)").getFormula() instanceof Formula.Num);
+        assertArrayEquals(new long[]{CellEntry.key(0, 1)}, new SCell("=if(1>0, A1, B2)").getDependencies());
+        assertTrue(SCell.isValidForm("if(A1>=2, max(A1, 3), min(B1:B9))"));
+        assertTrue(SCell.isValidForm("A1 != A2"));
+        assertFalse(SCell.isValidForm("1 = 2")); // Equality is "=="
+        assertFalse(SCell.isValidForm("1 < 2 < 3"));
+        assertFalse(SCell.isValidForm("sin(1, 2)"));
+        assertFalse(SCell.isValidForm("pow(A1:A3, 2)"));
+    }
+
+    @Test
+    public void testSharedTemplates() {
+        SCell c1 = new SCell("=A1*B1 + SUM(A0:A1)", 2, 1);
+        SCell c2 = new SCell("=A2*B2+sum(A1:A2)", 2, 2); // Filled down: same template, spaces aside
+        assertSame(c1.getFormula(), c2.getFormula());
+        assertArrayEquals(new long[]{CellEntry.key(0, 2), CellEntry.key(1, 2)}, c2.getDependencies());
+        assertEquals("A1:A2", c2.getRanges()[0].toString());
+        assertNotSame(c1.getFormula(), new SCell("=A2*B2+sum(A1:A2)", 2, 1).getFormula()); // Elsewhere
+        assertEquals(Ex2Utils.ERR_FORM_FORMAT, new SCell("=1 2", 0, 0).getType()); // Not the template of "=12"
+        assertEquals(Ex2Utils.FORM, new SCell("=12", 0, 0).getType());
+    }
+
+    @Test
+    public void testComputedValue() {
+        SCell cell = new SCell("=A1*2");
+        assertTrue(Double.isNaN(cell.getValue()));
+        assertNull(cell.getComputed()); // Not computed yet
+        cell.setValue(2.5);
+        assertEquals(2.5, cell.getValue());
+        assertEquals("2.5", cell.getComputed());
+        assertSame(cell.getComputed(), cell.getComputed()); // Formatted once
+        cell.setValue(3);
+        assertEquals("3.0", cell.getComputed());
+    }
 }
@@ -0,0 +1,40 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Applies the arithmetic operators to whole columns of numbers with the Vector API (jdk.incubator.vector):
+ * a single instruction computes SPECIES.length() rows at once, and the rows left over are computed one by one.
+ * Used by Formula.Op.evalColumn for the columns gathered from the cells of a shared formula.
+ *
+ * The Vector API is an incubator module in JDK 17, so it must be added explicitly, both when compiling and when
+ * running: "--add-modules jdk.incubator.vector". When it is not added at run time, this class is never loaded
+ * and Formula.Op falls back to its scalar loops (see Formula.VECTOR).
+ */
+public class VectorOps {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED; // Widest on this CPU
+
+    /**
+     * Applies an operator to two columns, row by row, into the first one.
+     *
+     * @param op One of Ex2Utils.M_OPS.
+     * @param a  The left operands, replaced by the results.
+     * @param b  The right operands.
+     * @param n  The number of rows.
+     */
+    public static void apply(char op, double[] a, double[] b, int n) {
+        VectorOperators.Binary o = switch (op) {
+            case '+' -> VectorOperators.ADD;
+            case '-' -> VectorOperators.SUB;
+            case '*' -> VectorOperators.MUL;
+            default -> VectorOperators.DIV;
+        };
+        int i = 0;
+        for (int bound = SPECIES.loopBound(n); i < bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, a, i).lanewise(o, DoubleVector.fromArray(SPECIES, b, i)).intoArray(a, i);
+        }
+        for (; i < n; i++) { // The rows which do not fill a vector
+            a[i] = Formula.Op.apply(op, a[i], b[i]);
+        }
+    }
+}